@@ -0,0 +1,102 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import com.googlecode.fascinator.common.JsonSimple;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the single pass form data parser with the original tree parser on
+ * a small package, the sample package shipped with the tests and a very large
+ * generated package. Both parse the same String.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormDataParserBenchmark {
+
+    @Param({"small", "typical", "large"})
+    private String size;
+
+    private String json;
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("small".equals(size)) {
+            json = "{\"title\":\"Small dataset\","
+                    + "\"description\":\"A record with very few fields\","
+                    + "\"dc:type.rdf:PlainLiteral\":\"dataset\","
+                    + "\"dc:creator.foaf:Person.1.dc:identifier\":\"1\","
+                    + "\"metaList\":[\"title\",\"description\"]}";
+        } else if ("typical".equals(size)) {
+            InputStream in = getClass().getResourceAsStream("/test.tfpackage");
+            try {
+                json = IOUtils.toString(in, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } else {
+            json = largePackage(2000);
+        }
+    }
+
+    @Benchmark
+    public JsonSimple singlePass() throws IOException {
+        return FormDataParser.parse(json);
+    }
+
+    @Benchmark
+    public JsonSimple tree() throws IOException {
+        return FormDataParser.parseTree(json);
+    }
+
+    /**
+     * Generate a package with the given number of creators, each with the
+     * usual handful of nested fields.
+     */
+    private static String largePackage(int creators) {
+        StringBuilder builder = new StringBuilder(
+                "{\"title\":\"Large dataset\"");
+        for (int i = 1; i <= creators; i++) {
+            String prefix = ",\"dc:creator.foaf:Person." + i + ".";
+            builder.append(prefix).append("dc:identifier\":\"")
+                    .append("redbox-mint.googlecode.com/parties/people/")
+                    .append(i).append('"');
+            builder.append(prefix).append("foaf:givenName\":\"Given ")
+                    .append(i).append('"');
+            builder.append(prefix).append("foaf:familyName\":\"Family ")
+                    .append(i).append('"');
+            builder.append(prefix).append("foaf:title\":\"Dr\"");
+            builder.append(prefix)
+                    .append("redbox:isCoPrimaryInvestigator\":\"off\"");
+            builder.append(prefix)
+                    .append("foaf:Organization.dc:identifier\":\"\"");
+            builder.append(prefix)
+                    .append("foaf:Organization.skos:prefLabel\":\"Org \\\"")
+                    .append(i % 50).append("\\\"\"");
+        }
+        builder.append(",\"metaList\":[");
+        for (int i = 1; i <= creators; i++) {
+            builder.append(i == 1 ? "" : ",")
+                    .append("\"dc:creator.foaf:Person.").append(i).append('"');
+        }
+        return builder.append("]}").toString();
+    }
+}
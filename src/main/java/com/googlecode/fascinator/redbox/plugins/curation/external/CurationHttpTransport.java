@@ -0,0 +1,384 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContainerFactory;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+
+/**
+ * HTTP transport shared by every call the curation plugin makes to the
+ * curation manager and external systems. Connections are pooled and kept
+ * alive per host, responses are parsed as JSON straight from the (optionally
+ * gzipped) response stream, without first reading them into a String, and
+ * the latency of every endpoint is recorded.
+ *
+ * Configured under curation/http with 'maxConnectionsPerHost',
+ * 'maxTotalConnections', 'connectTimeout', 'readTimeout' (milliseconds) and
+ * 'gzip'.
+ */
+@Component
+public class CurationHttpTransport implements DisposableBean {
+
+	/** Default number of pooled connections per host */
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+
+	/** Default number of pooled connections over all hosts */
+	private static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 50;
+
+	/** Default connect timeout in milliseconds */
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/** Default read timeout in milliseconds */
+	private static final int DEFAULT_READ_TIMEOUT = 60000;
+
+	/** Containers matching those JsonSimple parses into */
+	private static final ContainerFactory JSON_CONTAINERS = new ContainerFactory() {
+		@Override
+		public Map createObjectContainer() {
+			return new JsonObject();
+		}
+
+		@Override
+		public List creatArrayContainer() {
+			return new JSONArray();
+		}
+	};
+
+	/** Logging **/
+	private Logger log = LoggerFactory.getLogger(CurationHttpTransport.class);
+
+	/** Pooled connections */
+	private MultiThreadedHttpConnectionManager connectionManager;
+
+	/** Client sharing the pooled connections */
+	private HttpClient client;
+
+	/** Ask for compressed responses? */
+	private boolean gzip;
+
+	/** Latency statistics by endpoint name */
+	private final ConcurrentMap<String, EndpointStatistics> statistics = new ConcurrentHashMap<String, EndpointStatistics>();
+
+	public CurationHttpTransport() throws IOException {
+		JsonSimpleConfig systemConfig = new JsonSimpleConfig();
+		init(systemConfig.getInteger(DEFAULT_MAX_CONNECTIONS_PER_HOST,
+				"curation", "http", "maxConnectionsPerHost"),
+				systemConfig.getInteger(DEFAULT_MAX_TOTAL_CONNECTIONS,
+						"curation", "http", "maxTotalConnections"),
+				systemConfig.getInteger(DEFAULT_CONNECT_TIMEOUT, "curation",
+						"http", "connectTimeout"),
+				systemConfig.getInteger(DEFAULT_READ_TIMEOUT, "curation",
+						"http", "readTimeout"),
+				systemConfig.getBoolean(true, "curation", "http", "gzip"));
+	}
+
+	public CurationHttpTransport(int maxConnectionsPerHost,
+			int maxTotalConnections, int connectTimeout, int readTimeout,
+			boolean gzip) {
+		init(maxConnectionsPerHost, maxTotalConnections, connectTimeout,
+				readTimeout, gzip);
+	}
+
+	private void init(int maxConnectionsPerHost, int maxTotalConnections,
+			int connectTimeout, int readTimeout, boolean gzip) {
+		this.gzip = gzip;
+		connectionManager = new MultiThreadedHttpConnectionManager();
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+		params.setMaxTotalConnections(maxTotalConnections);
+		params.setConnectionTimeout(connectTimeout);
+		params.setSoTimeout(readTimeout);
+		params.setStaleCheckingEnabled(true);
+		client = new HttpClient(connectionManager);
+		// Don't wait forever on an exhausted pool either
+		client.getParams().setConnectionManagerTimeout(connectTimeout);
+	}
+
+	/**
+	 * GET a JSON document.
+	 *
+	 * @param endpoint
+	 *            The name latency is recorded under
+	 * @param url
+	 *            The URL to request
+	 * @return JsonSimple The parsed response
+	 * @throws IOException
+	 *             if the request fails, does not return a 2xx status or the
+	 *             response is not valid JSON
+	 */
+	public JsonSimple getJson(String endpoint, String url) throws IOException {
+		return execute(endpoint, new GetMethod(url), true);
+	}
+
+	/**
+	 * POST a JSON document and read the JSON response. The request body is
+	 * written straight to the connection rather than built as a String.
+	 *
+	 * @param endpoint
+	 *            The name latency is recorded under
+	 * @param url
+	 *            The URL to post to
+	 * @param body
+	 *            The JSON to send
+	 * @return JsonSimple The parsed response
+	 * @throws IOException
+	 *             if the request fails, does not return a 2xx status or the
+	 *             response is not valid JSON
+	 */
+	public JsonSimple postJson(String endpoint, String url, JSONStreamAware body)
+			throws IOException {
+		PostMethod post = new PostMethod(url);
+		post.setRequestEntity(new JsonRequestEntity(body));
+		return execute(endpoint, post, true);
+	}
+
+	/**
+	 * POST a JSON document where only the status of the response matters.
+	 * Any response body is discarded.
+	 *
+	 * @param endpoint
+	 *            The name latency is recorded under
+	 * @param url
+	 *            The URL to post to
+	 * @param body
+	 *            The JSON to send
+	 * @throws IOException
+	 *             if the request fails or does not return a 2xx status
+	 */
+	public void post(String endpoint, String url, JSONStreamAware body)
+			throws IOException {
+		PostMethod post = new PostMethod(url);
+		post.setRequestEntity(new JsonRequestEntity(body));
+		execute(endpoint, post, false);
+	}
+
+	/**
+	 * @return Map<String, EndpointStatistics> Latency statistics of every
+	 *         endpoint called so far, by endpoint name
+	 */
+	public Map<String, EndpointStatistics> getStatistics() {
+		return Collections
+				.unmodifiableMap(new TreeMap<String, EndpointStatistics>(
+						statistics));
+	}
+
+	@Override
+	public void destroy() {
+		connectionManager.shutdown();
+	}
+
+	private JsonSimple execute(String endpoint, HttpMethodBase method,
+			boolean readJson) throws IOException {
+		if (gzip) {
+			method.setRequestHeader("Accept-Encoding", "gzip");
+		}
+		EndpointStatistics stats = getEndpointStatistics(endpoint);
+		CurationMetrics.count(CurationMetrics.Operation.HTTP);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			int status = client.executeMethod(getHostConfiguration(method),
+					method);
+			if (status < 200 || status >= 300) {
+				throw new IOException(String.format(
+						"%s returned status code '%d' with message: %s",
+						method.getURI(), status, method.getStatusText()));
+			}
+			if (!readJson) {
+				failed = false;
+				return null;
+			}
+			InputStream in = method.getResponseBodyAsStream();
+			if (in == null) {
+				throw new IOException(method.getURI() + " returned no body");
+			}
+			Header encoding = method.getResponseHeader("Content-Encoding");
+			if (encoding != null
+					&& encoding.getValue().toLowerCase().contains("gzip")) {
+				in = new GZIPInputStream(in);
+			}
+			try {
+				JsonSimple response = readJson(in);
+				failed = false;
+				return response;
+			} finally {
+				in.close();
+			}
+		} finally {
+			method.releaseConnection();
+			stats.record(System.nanoTime() - start, failed);
+		}
+	}
+
+	/**
+	 * Parse JSON from a stream into the same structures JsonSimple builds.
+	 */
+	private JsonSimple readJson(InputStream in) throws IOException {
+		Object json;
+		try {
+			json = new JSONParser().parse(new InputStreamReader(in, "UTF-8"),
+					JSON_CONTAINERS);
+		} catch (ParseException ex) {
+			throw new IOException("Response is not valid JSON", ex);
+		}
+		if (json instanceof JsonObject) {
+			return new JsonSimple((JsonObject) json);
+		}
+		// Anything but an object is rare, leave it to JsonSimple
+		return new JsonSimple(JSONValue.toJSONString(json));
+	}
+
+	/**
+	 * Honour the JVM's proxy settings the same way BasicHttpClient does.
+	 */
+	private HostConfiguration getHostConfiguration(HttpMethodBase method) {
+		HostConfiguration hostConfig = new HostConfiguration();
+		try {
+			List<Proxy> proxies = ProxySelector.getDefault().select(
+					new URI(method.getURI().toString()));
+			Proxy proxy = proxies.get(0);
+			if (proxy.type().equals(Proxy.Type.HTTP)) {
+				InetSocketAddress address = (InetSocketAddress) proxy
+						.address();
+				hostConfig.setProxy(address.getHostName(), address.getPort());
+			}
+		} catch (Exception ex) {
+			log.warn("Failed to get proxy settings: " + ex.getMessage());
+		}
+		return hostConfig;
+	}
+
+	private EndpointStatistics getEndpointStatistics(String endpoint) {
+		EndpointStatistics stats = statistics.get(endpoint);
+		if (stats == null) {
+			stats = new EndpointStatistics();
+			EndpointStatistics existing = statistics.putIfAbsent(endpoint,
+					stats);
+			if (existing != null) {
+				stats = existing;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Streams a JSON document as a chunked request body.
+	 */
+	private static class JsonRequestEntity implements RequestEntity {
+		private final JSONStreamAware body;
+
+		private JsonRequestEntity(JSONStreamAware body) {
+			this.body = body;
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public void writeRequest(OutputStream out) throws IOException {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			body.writeJSONString(writer);
+			writer.flush();
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/json; charset=UTF-8";
+		}
+	}
+
+	/**
+	 * Call count, failure count and latency of a single endpoint.
+	 */
+	public static class EndpointStatistics {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private void record(long nanos, boolean failed) {
+			count.incrementAndGet();
+			if (failed) {
+				failures.incrementAndGet();
+			}
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public long getTotalMillis() {
+			return totalNanos.get() / 1000000;
+		}
+
+		public long getMaxMillis() {
+			return maxNanos.get() / 1000000;
+		}
+
+		public double getMeanMillis() {
+			long calls = count.get();
+			return calls == 0 ? 0 : totalNanos.get() / 1000000.0 / calls;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d failures=%d mean=%.1fms max=%dms",
+					getCount(), getFailures(), getMeanMillis(),
+					getMaxMillis());
+		}
+	}
+}
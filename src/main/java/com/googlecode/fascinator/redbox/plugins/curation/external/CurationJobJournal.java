@@ -0,0 +1,515 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import com.googlecode.fascinator.common.FascinatorHome;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+
+/**
+ * Append only journal of curation job lifecycle events. Each event is a
+ * single line of JSON appended to the journal file, so writers never
+ * rewrite existing history and a crash can at most leave one incomplete
+ * trailing line, which is ignored on replay.
+ *
+ * The current state of every job is held in memory, making reads and
+ * appends independent of the size of the history. Once enough events have
+ * been appended the journal is compacted into a new file holding only the
+ * unfinished jobs, which then atomically replaces the old one. The final
+ * response of every finished job is kept permanently in its own
+ * '<jobId>.json' file next to the journal, as it always has been.
+ *
+ * The journal has a single writer. Its state lives in the memory of the
+ * instance that owns it, so the journal file is locked for as long as that
+ * instance is open and a second instance, in this or another process,
+ * fails to open it.
+ *
+ * A completed job whose records could not be published to every target
+ * system stays unfinished, and the journal records which systems are still
+ * to be published to.
+ *
+ * Configured under curation/job-journal with 'compactAfter' (events).
+ */
+@Component
+public class CurationJobJournal implements DisposableBean {
+
+	/** Event written when a job is created in the curation manager */
+	public static final String EVENT_CREATED = "created";
+
+	/** Event written when a job reports a new status */
+	public static final String EVENT_STATUS_CHANGED = "status-changed";
+
+	/** Event written when a job completes or fails */
+	public static final String EVENT_COMPLETED = "completed";
+
+	/** Event written when publishing a completed job's records fails */
+	public static final String EVENT_PUBLICATION_FAILED = "publication-failed";
+
+	/** Status of newly created jobs */
+	public static final String STATUS_IN_PROGRESS = "INPROGRESS";
+
+	/** Status of completed jobs that are not published everywhere yet */
+	public static final String STATUS_PUBLICATION_FAILED = "PUBLICATION_FAILED";
+
+	/** Default number of appended events between compactions */
+	private static final int DEFAULT_COMPACT_AFTER = 1000;
+
+	/** Logging **/
+	private Logger log = LoggerFactory.getLogger(CurationJobJournal.class);
+
+	/** The journal file */
+	private File journalFile;
+
+	/** Open channel to the journal file */
+	private FileChannel channel;
+
+	/** Channel to the lock file, held while the journal is open */
+	private FileChannel lockChannel;
+
+	/** Lock making this instance the only writer */
+	private FileLock ownerLock;
+
+	/** Latest status of every unfinished job */
+	private Map<String, String> inProgressJobs = new LinkedHashMap<String, String>();
+
+	/** Target systems each unfinished job still has to be published to */
+	private Map<String, Set<String>> unpublishedSystems = new LinkedHashMap<String, Set<String>>();
+
+	/** Number of events in the journal file */
+	private int eventCount = 0;
+
+	/** Number of events that trigger a compaction */
+	private int compactAfter;
+
+	public CurationJobJournal() throws IOException {
+		this(new File(FascinatorHome.getPath("curation-status-responses"),
+				"jobs.journal"), new JsonSimpleConfig().getInteger(
+				DEFAULT_COMPACT_AFTER, "curation", "job-journal",
+				"compactAfter"));
+	}
+
+	public CurationJobJournal(File journalFile, int compactAfter)
+			throws IOException {
+		this.journalFile = journalFile;
+		this.compactAfter = compactAfter;
+		FileUtils.forceMkdir(journalFile.getParentFile());
+		lock();
+		try {
+			if (!journalFile.exists()) {
+				importLegacyJobs();
+			}
+			replay();
+			open();
+		} catch (IOException ex) {
+			unlock();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Record a job newly created in the curation manager.
+	 *
+	 * @param jobId
+	 *            The curation manager job ID
+	 * @throws IOException
+	 *             if the event could not be written
+	 */
+	public void jobCreated(String jobId) throws IOException {
+		append(event(EVENT_CREATED, jobId, STATUS_IN_PROGRESS));
+	}
+
+	/**
+	 * Record a status reported for a job. Nothing is written if the status
+	 * has not changed.
+	 *
+	 * @param jobId
+	 *            The curation manager job ID
+	 * @param status
+	 *            The reported status
+	 * @throws IOException
+	 *             if the event could not be written
+	 */
+	public synchronized void statusChanged(String jobId, String status)
+			throws IOException {
+		if (status != null && status.equals(inProgressJobs.get(jobId))) {
+			return;
+		}
+		append(event(EVENT_STATUS_CHANGED, jobId, status));
+	}
+
+	/**
+	 * Record a job that has completed or failed. The final response from the
+	 * curation manager is written to the job's own file before the event is
+	 * appended, so it survives compaction of the journal.
+	 *
+	 * @param jobId
+	 *            The curation manager job ID
+	 * @param status
+	 *            The final status
+	 * @param response
+	 *            The final status response, may be null
+	 * @throws IOException
+	 *             if the event could not be written
+	 */
+	public void jobCompleted(String jobId, String status, JsonSimple response)
+			throws IOException {
+		if (response != null) {
+			File responseFile = getResponseFile(jobId);
+			File temp = new File(responseFile.getPath() + ".tmp");
+			FileUtils.writeStringToFile(temp, response.toString(true),
+					"UTF-8");
+			Files.move(temp.toPath(), responseFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		append(event(EVENT_COMPLETED, jobId, status));
+	}
+
+	/**
+	 * Record a completed job whose records could not be published to some of
+	 * their target systems. The job stays unfinished until
+	 * {@link #jobCompleted(String, String, JsonSimple)} is recorded for it.
+	 *
+	 * @param jobId
+	 *            The curation manager job ID
+	 * @param systems
+	 *            The target systems still to be published to
+	 * @throws IOException
+	 *             if the event could not be written
+	 */
+	public void publicationFailed(String jobId, Collection<String> systems)
+			throws IOException {
+		append(publicationFailedEvent(jobId, systems));
+	}
+
+	/**
+	 * @param jobId
+	 *            The curation manager job ID
+	 * @return Set<String> The target systems an unfinished job still has to be
+	 *         published to, or null if no publication failure was recorded
+	 */
+	public synchronized Set<String> getUnpublishedSystems(String jobId) {
+		Set<String> systems = unpublishedSystems.get(jobId);
+		if (systems == null) {
+			return null;
+		}
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(systems));
+	}
+
+	/**
+	 * @param jobId
+	 *            The curation manager job ID
+	 * @return JsonSimple The final response of a finished job, or null if
+	 *         none was recorded
+	 * @throws IOException
+	 *             if the response could not be read
+	 */
+	public JsonSimple getResponse(String jobId) throws IOException {
+		File responseFile = getResponseFile(jobId);
+		if (!responseFile.exists()) {
+			return null;
+		}
+		return new JsonSimple(responseFile);
+	}
+
+	/**
+	 * @param jobId
+	 *            The curation manager job ID
+	 * @return String The latest status of an unfinished job, or null if the
+	 *         job is unknown or finished
+	 */
+	public synchronized String getStatus(String jobId) {
+		return inProgressJobs.get(jobId);
+	}
+
+	/**
+	 * @return Set<String> The IDs of every unfinished job
+	 */
+	public synchronized Set<String> getInProgressJobIds() {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(
+				inProgressJobs.keySet()));
+	}
+
+	/**
+	 * @return int The number of unfinished jobs
+	 */
+	public synchronized int getInProgressJobCount() {
+		return inProgressJobs.size();
+	}
+
+	/**
+	 * Rewrite the journal so it only holds unfinished jobs.
+	 *
+	 * @throws IOException
+	 *             if the compacted journal could not be written
+	 */
+	public synchronized void compact() throws IOException {
+		File compacted = new File(journalFile.getPath() + ".compact");
+		RandomAccessFile file = new RandomAccessFile(compacted, "rw");
+		int count = 0;
+		try {
+			FileChannel out = file.getChannel();
+			out.truncate(0);
+			StringBuilder lines = new StringBuilder();
+			for (Map.Entry<String, String> job : inProgressJobs.entrySet()) {
+				lines.append(toLine(event(EVENT_CREATED, job.getKey(),
+						STATUS_IN_PROGRESS)));
+				count++;
+				if (!STATUS_IN_PROGRESS.equals(job.getValue())) {
+					lines.append(toLine(event(EVENT_STATUS_CHANGED,
+							job.getKey(), job.getValue())));
+					count++;
+				}
+				Set<String> systems = unpublishedSystems.get(job.getKey());
+				if (systems != null) {
+					lines.append(toLine(publicationFailedEvent(job.getKey(),
+							systems)));
+					count++;
+				}
+			}
+			write(out, lines.toString());
+			out.force(true);
+		} finally {
+			file.close();
+		}
+
+		close();
+		try {
+			Files.move(compacted.toPath(), journalFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			eventCount = count;
+		} finally {
+			// Whichever file is in place now, keep appending to it
+			open();
+		}
+		log.debug("Compacted job journal to {} events", count);
+	}
+
+	@Override
+	public synchronized void destroy() throws IOException {
+		try {
+			close();
+		} finally {
+			unlock();
+		}
+	}
+
+	private File getResponseFile(String jobId) {
+		return new File(journalFile.getParentFile(), jobId + ".json");
+	}
+
+	private JsonObject event(String type, String jobId, String status) {
+		JsonObject event = new JsonObject();
+		event.put("event", type);
+		event.put("jobId", jobId);
+		event.put("status", status);
+		event.put("time", System.currentTimeMillis());
+		return event;
+	}
+
+	private JsonObject publicationFailedEvent(String jobId,
+			Collection<String> systems) {
+		JsonObject event = event(EVENT_PUBLICATION_FAILED, jobId,
+				STATUS_PUBLICATION_FAILED);
+		JSONArray systemArray = new JSONArray();
+		systemArray.addAll(systems);
+		event.put("systems", systemArray);
+		return event;
+	}
+
+	private synchronized void append(JsonObject event) throws IOException {
+		write(channel, toLine(event));
+		channel.force(false);
+		apply(event);
+		eventCount++;
+		if (compactAfter > 0 && eventCount >= compactAfter + inProgressJobs.size()) {
+			// The event is already safe, a failed compaction is retried
+			try {
+				compact();
+			} catch (IOException ex) {
+				log.error("Error compacting job journal: ", ex);
+			}
+		}
+	}
+
+	private void apply(JsonObject event) {
+		String type = (String) event.get("event");
+		String jobId = (String) event.get("jobId");
+		if (jobId == null) {
+			return;
+		}
+		if (EVENT_COMPLETED.equals(type)) {
+			inProgressJobs.remove(jobId);
+			unpublishedSystems.remove(jobId);
+		} else if (EVENT_PUBLICATION_FAILED.equals(type)) {
+			if (inProgressJobs.containsKey(jobId)) {
+				inProgressJobs.put(jobId, (String) event.get("status"));
+				Set<String> systems = new LinkedHashSet<String>();
+				List<?> systemArray = (List<?>) event.get("systems");
+				if (systemArray != null) {
+					for (Object system : systemArray) {
+						systems.add(system.toString());
+					}
+				}
+				unpublishedSystems.put(jobId, systems);
+			}
+		} else if (EVENT_CREATED.equals(type)
+				|| inProgressJobs.containsKey(jobId)) {
+			inProgressJobs.put(jobId, (String) event.get("status"));
+		}
+	}
+
+	private String toLine(JsonObject event) {
+		return new JsonSimple(event).toString() + "\n";
+	}
+
+	private void write(FileChannel out, String text) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes("UTF-8"));
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * Rebuild the in memory state from the journal file. A trailing line
+	 * without a newline was cut short by a crash and is dropped from the
+	 * file.
+	 */
+	private void replay() throws IOException {
+		inProgressJobs.clear();
+		unpublishedSystems.clear();
+		eventCount = 0;
+		if (!journalFile.exists()) {
+			return;
+		}
+		long validLength = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(journalFile), "UTF-8"));
+		try {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = reader.read()) != -1) {
+				if (c != '\n') {
+					line.append((char) c);
+					continue;
+				}
+				validLength += line.toString().getBytes("UTF-8").length + 1;
+				if (line.length() > 0) {
+					try {
+						apply(new JsonSimple(line.toString()).getJsonObject());
+						eventCount++;
+					} catch (IOException ex) {
+						log.error("Ignoring corrupt job journal entry: {}",
+								line);
+					}
+				}
+				line.setLength(0);
+			}
+		} finally {
+			reader.close();
+		}
+		if (validLength < journalFile.length()) {
+			log.warn("Discarding incomplete entry at the end of the job journal");
+			RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+			try {
+				file.setLength(validLength);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Carry jobs over from the old 'inProgressJobs.json' file, if there is
+	 * one, so upgrading does not lose track of running jobs.
+	 */
+	private void importLegacyJobs() throws IOException {
+		File legacyFile = new File(journalFile.getParentFile(),
+				"inProgressJobs.json");
+		if (!legacyFile.exists()) {
+			return;
+		}
+		JSONArray legacyJobs = new JsonSimple(legacyFile)
+				.getArray("inProgressJobs");
+		if (legacyJobs == null) {
+			return;
+		}
+		StringBuilder lines = new StringBuilder();
+		for (Object jobId : legacyJobs) {
+			lines.append(toLine(event(EVENT_CREATED, jobId.toString(),
+					STATUS_IN_PROGRESS)));
+		}
+		File imported = new File(journalFile.getPath() + ".import");
+		FileUtils.writeStringToFile(imported, lines.toString(), "UTF-8");
+		Files.move(imported.toPath(), journalFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		log.info("Imported {} jobs from '{}'", legacyJobs.size(), legacyFile);
+	}
+
+	private void open() throws IOException {
+		channel = new RandomAccessFile(journalFile, "rw").getChannel();
+		channel.position(channel.size());
+	}
+
+	/**
+	 * Take the lock that makes this instance the journal's only writer.
+	 */
+	private void lock() throws IOException {
+		File lockFile = new File(journalFile.getPath() + ".lock");
+		lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+		try {
+			ownerLock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			ownerLock = null;
+		}
+		if (ownerLock == null) {
+			lockChannel.close();
+			lockChannel = null;
+			throw new IOException("Job journal '" + journalFile
+					+ "' is already open in another instance");
+		}
+	}
+
+	private void unlock() throws IOException {
+		if (lockChannel != null) {
+			// Closing the channel releases the lock
+			lockChannel.close();
+			lockChannel = null;
+			ownerLock = null;
+		}
+	}
+
+	private void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+}
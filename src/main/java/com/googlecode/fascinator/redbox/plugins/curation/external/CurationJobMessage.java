@@ -0,0 +1,125 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONStreamAware;
+
+import com.googlecode.fascinator.common.JsonObject;
+
+/**
+ * The records of a curation manager job. Record entries are created from
+ * their compiled identifier mappings as the message is written, one at a
+ * time, so the whole job never has to be held as a single JSON array. The
+ * time spent creating them is kept apart from the time spent writing, so
+ * mapping can be told apart from the request it streams into.
+ */
+public class CurationJobMessage implements JSONStreamAware {
+
+	/** Records, either complete entries or objects still to be mapped */
+	private final List<Object> records = new ArrayList<Object>();
+
+	/** Nanoseconds spent creating record entries while written */
+	private long mappingTime;
+
+	/**
+	 * Add a record that is sent as is.
+	 *
+	 * @param record
+	 *            The record entry
+	 */
+	public void addRecord(JsonObject record) {
+		records.add(record);
+	}
+
+	/**
+	 * Add a record created from an object's metadata when written.
+	 *
+	 * @param oid
+	 *            The object's OID
+	 * @param metadata
+	 *            The object's metadata
+	 * @param mapping
+	 *            The compiled mappings of the object's harvest config
+	 */
+	public void addRecord(String oid, JsonObject metadata,
+			IdentifierMappingTemplate mapping) {
+		records.add(new MappedRecord(oid, metadata, mapping));
+	}
+
+	/**
+	 * @return int The number of records in the job
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * @return long Nanoseconds spent creating record entries in every write
+	 *         so far, excluding {@link #toString()}
+	 */
+	public long getMappingTime() {
+		return mappingTime;
+	}
+
+	@Override
+	public void writeJSONString(Writer out) throws IOException {
+		write(out, true);
+	}
+
+	@Override
+	public String toString() {
+		StringWriter writer = new StringWriter();
+		try {
+			write(writer, false);
+		} catch (IOException ex) {
+			// StringWriter does not throw
+		}
+		return writer.toString();
+	}
+
+	private void write(Writer out, boolean timed) throws IOException {
+		out.write('[');
+		boolean first = true;
+		for (Object record : records) {
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			if (record instanceof MappedRecord) {
+				long start = timed ? System.nanoTime() : 0;
+				JsonObject entry = ((MappedRecord) record).create();
+				if (timed) {
+					mappingTime += System.nanoTime() - start;
+				}
+				entry.writeJSONString(out);
+			} else {
+				((JsonObject) record).writeJSONString(out);
+			}
+		}
+		out.write(']');
+	}
+
+	/**
+	 * An object whose record entry is created when written.
+	 */
+	private static class MappedRecord {
+		private final String oid;
+		private final JsonObject metadata;
+		private final IdentifierMappingTemplate mapping;
+
+		private MappedRecord(String oid, JsonObject metadata,
+				IdentifierMappingTemplate mapping) {
+			this.oid = oid;
+			this.metadata = metadata;
+			this.mapping = mapping;
+		}
+
+		private JsonObject create() {
+			return mapping.createRecord(oid, metadata);
+		}
+	}
+}
@@ -0,0 +1,800 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.googlecode.fascinator.common.FascinatorHome;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+
+/**
+ * Latency and operation metrics of the curation transaction manager.
+ *
+ * Each message is timed as a whole and through its stages, with a histogram
+ * per task type and stage. Storage, index and HTTP operations are counted
+ * against the message being processed on the current thread (see
+ * {@link #count(Operation)}), and each message's totals go into a histogram
+ * per task type. Histograms are preallocated and the per message state is
+ * reused by each thread, so recording allocates nothing and can stay on in
+ * production. Each use of the message state has its own generation, and
+ * workers only count against the generation they were bound to, so a worker
+ * still running once its message has ended cannot count against the next
+ * one.
+ *
+ * The statistics of the identifier resolver and the HTTP transport are
+ * exposed alongside, when those beans are available.
+ *
+ * Metrics are exposed over JMX and written to a JSON snapshot file. Configured
+ * under curation/metrics with 'snapshotFile' and 'snapshotInterval'
+ * (milliseconds, 0 to disable).
+ */
+@Component
+public class CurationMetrics implements CurationMetricsMXBean,
+		MBeanRegistration, DisposableBean {
+
+	/** JMX name */
+	public static final String OBJECT_NAME = "com.googlecode.fascinator.redbox.plugins.curation:type=CurationMetrics";
+
+	/** Default time between snapshot files, in milliseconds */
+	private static final int DEFAULT_SNAPSHOT_INTERVAL = 60000;
+
+	/**
+	 * Stages of processing a message. Curation records are mapped while the
+	 * job is written to the curation manager, so {@link #MESSAGE_BUILDING}
+	 * only covers collecting them; {@link #RECORD_MAPPING} is the mapping
+	 * time measured during the write and {@link #CURATION_MANAGER_POST} the
+	 * rest of the request.
+	 */
+	public enum Stage {
+		RELATIONSHIP_MAPPING, MESSAGE_BUILDING, RECORD_MAPPING, CURATION_MANAGER_POST, JOB_PERSISTENCE, OBJECT_METADATA_UPDATE;
+
+		private final String label = name().toLowerCase(Locale.ENGLISH)
+				.replace('_', '-');
+	}
+
+	/** Kinds of message handled */
+	public enum TaskType {
+		HARVEST, WORKFLOW, REHARVEST, CURATION, OTHER;
+
+		private final String label = name().toLowerCase(Locale.ENGLISH);
+	}
+
+	/** Operations counted per message */
+	public enum Operation {
+		STORAGE, INDEX, HTTP;
+
+		private final String label = name().toLowerCase(Locale.ENGLISH);
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+	private static final TaskType[] TASK_TYPES = TaskType.values();
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	/** Message state owned by each thread, reused for every message */
+	private static final ThreadLocal<Message> OWN_MESSAGE = new ThreadLocal<Message>() {
+		@Override
+		protected Message initialValue() {
+			return new Message();
+		}
+	};
+
+	/** The message the current thread is working for, if any */
+	private static final ThreadLocal<CurrentMessage> CURRENT_MESSAGE = new ThreadLocal<CurrentMessage>() {
+		@Override
+		protected CurrentMessage initialValue() {
+			return new CurrentMessage();
+		}
+	};
+
+	/** Logging **/
+	private Logger log = LoggerFactory.getLogger(CurationMetrics.class);
+
+	/** Source of the in progress job count */
+	@Autowired(required = false)
+	private CurationJobJournal curationJobJournal;
+
+	/** Source of the identifier resolution statistics */
+	@Autowired(required = false)
+	private IdentifierResolver identifierResolver;
+
+	/** Source of the HTTP statistics */
+	@Autowired(required = false)
+	private CurationHttpTransport httpTransport;
+
+	/** Message latency by task type */
+	private final Histogram[] messageLatency = new Histogram[TASK_TYPES.length];
+
+	/** Stage latency by task type and stage */
+	private final Histogram[][] stageLatency = new Histogram[TASK_TYPES.length][STAGES.length];
+
+	/** Operations per message by task type and operation */
+	private final Histogram[][] operationsPerMessage = new Histogram[TASK_TYPES.length][OPERATIONS.length];
+
+	/** Operation totals */
+	private final AtomicLongArray operationTotals = new AtomicLongArray(
+			OPERATIONS.length);
+
+	/** Where snapshots are written */
+	private File snapshotFile;
+
+	/** Writes snapshots periodically */
+	private ScheduledExecutorService scheduler;
+
+	/** Our JMX registration, cleared if another instance replaces it */
+	private volatile ObjectInstance registration;
+
+	public CurationMetrics() throws IOException {
+		JsonSimpleConfig systemConfig = new JsonSimpleConfig();
+		String path = systemConfig.getString(null, "curation", "metrics",
+				"snapshotFile");
+		init(path == null ? new File(FascinatorHome.getPath("curation-metrics"),
+				"metrics.json") : new File(path), systemConfig.getInteger(
+				DEFAULT_SNAPSHOT_INTERVAL, "curation", "metrics",
+				"snapshotInterval"));
+	}
+
+	public CurationMetrics(File snapshotFile, long snapshotInterval) {
+		init(snapshotFile, snapshotInterval);
+	}
+
+	private void init(File snapshotFile, long snapshotInterval) {
+		this.snapshotFile = snapshotFile;
+		for (int t = 0; t < TASK_TYPES.length; t++) {
+			messageLatency[t] = new Histogram();
+			for (int s = 0; s < STAGES.length; s++) {
+				stageLatency[t][s] = new Histogram();
+			}
+			for (int o = 0; o < OPERATIONS.length; o++) {
+				operationsPerMessage[t][o] = new Histogram();
+			}
+		}
+		register();
+		if (snapshotInterval > 0) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable,
+									"curation-metrics-snapshot");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						writeSnapshot();
+					} catch (Exception ex) {
+						log.warn("Error writing metrics snapshot: ", ex);
+					}
+				}
+			}, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Work out the task type of a transaction manager message.
+	 *
+	 * @param message
+	 *            The incoming message
+	 * @return TaskType The task type
+	 */
+	public static TaskType getTaskType(JsonSimple message) {
+		if (message.getObject("harvester") != null) {
+			return TaskType.HARVEST;
+		}
+		String task = message.getString(null, "task");
+		if (task == null) {
+			return TaskType.OTHER;
+		}
+		if (task.equals("workflow")) {
+			return TaskType.WORKFLOW;
+		}
+		if (task.equals("reharvest")) {
+			return TaskType.REHARVEST;
+		}
+		if (task.startsWith("curation")) {
+			return TaskType.CURATION;
+		}
+		return TaskType.OTHER;
+	}
+
+	/**
+	 * Start timing a message processed on the current thread. Operations
+	 * counted on this thread are added to the message until it ends.
+	 *
+	 * @param type
+	 *            The task type of the message
+	 * @return Message The message state to pass to the other methods
+	 */
+	public Message beginMessage(TaskType type) {
+		Message message = OWN_MESSAGE.get();
+		message.open(type);
+		CURRENT_MESSAGE.get().set(message, message.generation);
+		message.start = System.nanoTime();
+		return message;
+	}
+
+	/**
+	 * Record the latency of a stage that started at the given time.
+	 *
+	 * @param message
+	 *            The message the stage belongs to
+	 * @param stage
+	 *            The stage
+	 * @param start
+	 *            The stage start, from System.nanoTime()
+	 * @return long The current time, to start the next stage from
+	 */
+	public long recordStage(Message message, Stage stage, long start) {
+		long now = System.nanoTime();
+		stageLatency[message.type.ordinal()][stage.ordinal()].record(now
+				- start);
+		return now;
+	}
+
+	/**
+	 * Record the latency of a stage measured by the caller.
+	 *
+	 * @param message
+	 *            The message the stage belongs to
+	 * @param stage
+	 *            The stage
+	 * @param time
+	 *            The stage latency, in nanoseconds
+	 */
+	public void recordStageTime(Message message, Stage stage, long time) {
+		stageLatency[message.type.ordinal()][stage.ordinal()].record(time);
+	}
+
+	/**
+	 * Finish a message, recording its latency and operation counts. Counts
+	 * arriving later, from workers still bound to it, are ignored.
+	 *
+	 * @param message
+	 *            The message
+	 */
+	public void endMessage(Message message) {
+		int type = message.type.ordinal();
+		messageLatency[type].record(System.nanoTime() - message.start);
+		for (int o = 0; o < OPERATIONS.length; o++) {
+			long count = message.close(o);
+			operationsPerMessage[type][o].record(count);
+			operationTotals.addAndGet(o, count);
+		}
+		// Cleared rather than removed, which would allocate on the next set
+		CURRENT_MESSAGE.get().set(null, 0);
+	}
+
+	/**
+	 * Count an operation against the message the current thread is working
+	 * for. Nothing is counted outside of a message.
+	 *
+	 * @param operation
+	 *            The operation performed
+	 */
+	public static void count(Operation operation) {
+		CurrentMessage current = CURRENT_MESSAGE.get();
+		if (current.message != null) {
+			current.message.increment(operation.ordinal(), current.generation);
+		}
+	}
+
+	/**
+	 * Capture the message the current thread is working for, so other
+	 * threads can count against it with {@link #bind(Binding)}.
+	 *
+	 * @return Binding The message as of now, or null outside of a message
+	 */
+	public static Binding currentBinding() {
+		CurrentMessage current = CURRENT_MESSAGE.get();
+		if (current.message == null) {
+			return null;
+		}
+		return new Binding(current.message, current.generation);
+	}
+
+	/**
+	 * Count operations of the current thread against a message started on
+	 * another thread, until {@link #unbind()} is called. Nothing is counted
+	 * once that message has ended.
+	 *
+	 * @param binding
+	 *            The message, may be null
+	 */
+	public static void bind(Binding binding) {
+		if (binding != null) {
+			CURRENT_MESSAGE.get().set(binding.message, binding.generation);
+		}
+	}
+
+	/**
+	 * Stop counting operations of the current thread.
+	 */
+	public static void unbind() {
+		CURRENT_MESSAGE.get().set(null, 0);
+	}
+
+	@Override
+	public long getMessageCount() {
+		long count = 0;
+		for (Histogram histogram : messageLatency) {
+			count += histogram.getCount();
+		}
+		return count;
+	}
+
+	@Override
+	public int getInProgressJobCount() {
+		return curationJobJournal == null ? -1 : curationJobJournal
+				.getInProgressJobCount();
+	}
+
+	@Override
+	public Map<String, Long> getIdentifierResolverStatistics() {
+		Map<String, Long> statistics = new TreeMap<String, Long>();
+		if (identifierResolver != null) {
+			statistics.put("cacheSize",
+					(long) identifierResolver.getCacheSize());
+			statistics.put("cacheHits", identifierResolver.getCacheHitCount());
+			statistics.put("cacheMisses",
+					identifierResolver.getCacheMissCount());
+			statistics.put("unresolvedCacheSize",
+					(long) identifierResolver.getUnresolvedCacheSize());
+			statistics.put("queries", identifierResolver.getQueryCount());
+		}
+		return statistics;
+	}
+
+	@Override
+	public Map<String, String> getHttpStatistics() {
+		Map<String, String> statistics = new TreeMap<String, String>();
+		if (httpTransport != null) {
+			for (Map.Entry<String, CurationHttpTransport.EndpointStatistics> endpoint : httpTransport
+					.getStatistics().entrySet()) {
+				statistics.put(endpoint.getKey(), endpoint.getValue()
+						.toString());
+			}
+		}
+		return statistics;
+	}
+
+	@Override
+	public Map<String, Long> getOperationTotals() {
+		Map<String, Long> totals = new TreeMap<String, Long>();
+		for (Operation operation : OPERATIONS) {
+			totals.put(operation.label,
+					operationTotals.get(operation.ordinal()));
+		}
+		return totals;
+	}
+
+	@Override
+	public Map<String, String> getLatencies() {
+		Map<String, String> latencies = new TreeMap<String, String>();
+		for (TaskType type : TASK_TYPES) {
+			Histogram message = messageLatency[type.ordinal()];
+			if (message.getCount() > 0) {
+				latencies.put(type.label + "/message",
+						message.toLatencyString());
+			}
+			for (Stage stage : STAGES) {
+				Histogram histogram = stageLatency[type.ordinal()][stage
+						.ordinal()];
+				if (histogram.getCount() > 0) {
+					latencies.put(type.label + "/" + stage.label,
+							histogram.toLatencyString());
+				}
+			}
+		}
+		return latencies;
+	}
+
+	@Override
+	public Map<String, String> getOperationsPerMessage() {
+		Map<String, String> operations = new TreeMap<String, String>();
+		for (TaskType type : TASK_TYPES) {
+			for (Operation operation : OPERATIONS) {
+				Histogram histogram = operationsPerMessage[type.ordinal()][operation
+						.ordinal()];
+				if (histogram.getCount() > 0) {
+					operations.put(type.label + "/" + operation.label,
+							histogram.toString());
+				}
+			}
+		}
+		return operations;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public String getSnapshot() {
+		JsonObject snapshot = new JsonObject();
+		snapshot.put("timestamp", System.currentTimeMillis());
+		snapshot.put("inProgressJobs", getInProgressJobCount());
+		JsonObject totals = new JsonObject();
+		totals.putAll(getOperationTotals());
+		snapshot.put("operations", totals);
+		JsonObject resolver = new JsonObject();
+		resolver.putAll(getIdentifierResolverStatistics());
+		snapshot.put("identifierResolver", resolver);
+		JsonObject http = new JsonObject();
+		http.putAll(getHttpStatistics());
+		snapshot.put("http", http);
+
+		JsonObject taskTypes = new JsonObject();
+		for (TaskType type : TASK_TYPES) {
+			Histogram message = messageLatency[type.ordinal()];
+			if (message.getCount() == 0) {
+				continue;
+			}
+			JsonObject task = new JsonObject();
+			task.put("message", message.toLatencyJson());
+			JsonObject stages = new JsonObject();
+			for (Stage stage : STAGES) {
+				Histogram histogram = stageLatency[type.ordinal()][stage
+						.ordinal()];
+				if (histogram.getCount() > 0) {
+					stages.put(stage.label, histogram.toLatencyJson());
+				}
+			}
+			task.put("stages", stages);
+			JsonObject operations = new JsonObject();
+			for (Operation operation : OPERATIONS) {
+				operations.put(operation.label, operationsPerMessage[type
+						.ordinal()][operation.ordinal()].toJson());
+			}
+			task.put("operationsPerMessage", operations);
+			taskTypes.put(type.label, task);
+		}
+		snapshot.put("taskTypes", taskTypes);
+		return new JsonSimple(snapshot).toString(true);
+	}
+
+	@Override
+	public synchronized void writeSnapshot() throws IOException {
+		FileUtils.forceMkdir(snapshotFile.getAbsoluteFile().getParentFile());
+		File temp = new File(snapshotFile.getPath() + ".tmp");
+		FileUtils.writeStringToFile(temp, getSnapshot(), "UTF-8");
+		Files.move(temp.toPath(), snapshotFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public void reset() {
+		for (int t = 0; t < TASK_TYPES.length; t++) {
+			messageLatency[t].reset();
+			for (Histogram histogram : stageLatency[t]) {
+				histogram.reset();
+			}
+			for (Histogram histogram : operationsPerMessage[t]) {
+				histogram.reset();
+			}
+		}
+		for (int o = 0; o < OPERATIONS.length; o++) {
+			operationTotals.set(o, 0);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		// Only our own registration, a newer instance may have replaced it
+		ObjectInstance instance = registration;
+		if (instance != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						instance.getObjectName());
+			} catch (Exception ex) {
+				log.warn("Error unregistering metrics MBean: ", ex);
+			}
+		}
+	}
+
+	@Override
+	public ObjectName preRegister(MBeanServer server, ObjectName name) {
+		return name;
+	}
+
+	@Override
+	public void postRegister(Boolean registrationDone) {
+	}
+
+	@Override
+	public void preDeregister() {
+	}
+
+	@Override
+	public void postDeregister() {
+		// Unregistered, by us or by a newer instance taking over the name
+		registration = null;
+	}
+
+	/**
+	 * Register with the platform MBean server, replacing any earlier
+	 * instance (e.g. from a redeployed context).
+	 */
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			ObjectInstance instance;
+			try {
+				instance = server.registerMBean(this, name);
+			} catch (InstanceAlreadyExistsException ex) {
+				server.unregisterMBean(name);
+				instance = server.registerMBean(this, name);
+			}
+			registration = instance;
+		} catch (Exception ex) {
+			log.warn("Error registering metrics MBean: ", ex);
+		}
+	}
+
+	/**
+	 * Timing and operation counts of the message a thread is working for.
+	 */
+	public static class Message {
+		/** Low bits of an operation slot holding the count */
+		private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+		private TaskType type = TaskType.OTHER;
+		private long start;
+
+		/** Use of this state, only changed by the owning thread */
+		private int generation = 0;
+
+		/**
+		 * Operation counts, with the generation they belong to in the high
+		 * bits, so a count for another generation is refused atomically
+		 */
+		private final AtomicLongArray operations = new AtomicLongArray(
+				OPERATIONS.length);
+
+		private Message() {
+		}
+
+		/**
+		 * @param operation
+		 *            An operation
+		 * @return long The number of times it was performed so far
+		 */
+		public long getCount(Operation operation) {
+			return operations.get(operation.ordinal()) & COUNT_MASK;
+		}
+
+		private void open(TaskType type) {
+			this.type = type;
+			// Generation 0 marks a closed message
+			if (++generation == 0) {
+				generation = 1;
+			}
+			long empty = (long) generation << 32;
+			for (int o = 0; o < OPERATIONS.length; o++) {
+				operations.set(o, empty);
+			}
+		}
+
+		private long close(int operation) {
+			return operations.getAndSet(operation, 0) & COUNT_MASK;
+		}
+
+		private void increment(int operation, int expectedGeneration) {
+			while (true) {
+				long slot = operations.get(operation);
+				if ((int) (slot >>> 32) != expectedGeneration) {
+					return;
+				}
+				if (operations.compareAndSet(operation, slot, slot + 1)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A message as captured on the thread working for it, for other threads
+	 * to count against.
+	 */
+	public static final class Binding {
+		private final Message message;
+		private final int generation;
+
+		private Binding(Message message, int generation) {
+			this.message = message;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * The message a thread is counting against, reused by each thread.
+	 */
+	private static final class CurrentMessage {
+		private Message message;
+		private int generation;
+
+		private void set(Message message, int generation) {
+			this.message = message;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Fixed size histogram of non-negative values. Buckets are exact below 8,
+	 * then each power of two is split into 8 buckets, so reported
+	 * percentiles are within 12.5% of the recorded value.
+	 */
+	public static class Histogram {
+		private static final int SUB_BUCKETS = 8;
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS)
+				* SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Record a value. Negative values are recorded as 0.
+		 *
+		 * @param value
+		 *            The value
+		 */
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			buckets.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			total.addAndGet(value);
+			long current = max.get();
+			while (value > current && !max.compareAndSet(current, value)) {
+				current = max.get();
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long values = count.get();
+			return values == 0 ? 0 : (double) total.get() / values;
+		}
+
+		/**
+		 * @param percentile
+		 *            The percentile, between 0 and 100
+		 * @return long The upper bound of the bucket holding the percentile,
+		 *         capped at the maximum recorded value
+		 */
+		public long getPercentile(double percentile) {
+			long values = count.get();
+			if (values == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(values * percentile / 100);
+			if (rank < 1) {
+				rank = 1;
+			}
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		public void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			total.set(0);
+			max.set(0);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ENGLISH,
+					"count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+					getCount(), getMean(), getPercentile(50),
+					getPercentile(90), getPercentile(99), getMax());
+		}
+
+		private String toLatencyString() {
+			return String.format(Locale.ENGLISH,
+					"count=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms",
+					getCount(), getMean() / 1000000, millis(getPercentile(50)),
+					millis(getPercentile(90)), millis(getPercentile(99)),
+					millis(getMax()));
+		}
+
+		@SuppressWarnings("unchecked")
+		private JsonObject toJson() {
+			JsonObject json = new JsonObject();
+			json.put("count", getCount());
+			json.put("mean", getMean());
+			json.put("p50", getPercentile(50));
+			json.put("p90", getPercentile(90));
+			json.put("p99", getPercentile(99));
+			json.put("max", getMax());
+			return json;
+		}
+
+		@SuppressWarnings("unchecked")
+		private JsonObject toLatencyJson() {
+			JsonObject json = new JsonObject();
+			json.put("count", getCount());
+			json.put("meanMillis", getMean() / 1000000);
+			json.put("p50Millis", millis(getPercentile(50)));
+			json.put("p90Millis", millis(getPercentile(90)));
+			json.put("p99Millis", millis(getPercentile(99)));
+			json.put("maxMillis", millis(getMax()));
+			return json;
+		}
+
+		private static double millis(long nanos) {
+			return nanos / 1000000.0;
+		}
+
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+					& (SUB_BUCKETS - 1);
+			return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS
+					+ sub;
+		}
+
+		private static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS
+					+ SUB_BUCKET_BITS;
+			int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			long base = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+			return base + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+		}
+	}
+}
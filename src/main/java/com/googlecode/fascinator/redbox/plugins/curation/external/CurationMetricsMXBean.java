@@ -0,0 +1,69 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * JMX view of {@link CurationMetrics}.
+ */
+public interface CurationMetricsMXBean {
+
+	/**
+	 * @return long The number of messages processed since the last reset
+	 */
+	long getMessageCount();
+
+	/**
+	 * @return int The number of curation jobs in progress
+	 */
+	int getInProgressJobCount();
+
+	/**
+	 * @return Map<String, Long> Identifier resolver cache sizes, hits and
+	 *         misses, and index queries, empty if there is no resolver
+	 */
+	Map<String, Long> getIdentifierResolverStatistics();
+
+	/**
+	 * @return Map<String, String> HTTP request summaries, keyed by endpoint,
+	 *         empty if there is no transport
+	 */
+	Map<String, String> getHttpStatistics();
+
+	/**
+	 * @return Map<String, Long> Storage, index and HTTP operations performed
+	 *         by messages since the last reset
+	 */
+	Map<String, Long> getOperationTotals();
+
+	/**
+	 * @return Map<String, String> Latency summaries, keyed by task type and
+	 *         stage, e.g. 'curation/relationship-mapping'
+	 */
+	Map<String, String> getLatencies();
+
+	/**
+	 * @return Map<String, String> Summaries of the operations each message
+	 *         performed, keyed by task type and operation, e.g.
+	 *         'curation/storage'
+	 */
+	Map<String, String> getOperationsPerMessage();
+
+	/**
+	 * @return String Every metric as JSON
+	 */
+	String getSnapshot();
+
+	/**
+	 * Write the snapshot file now.
+	 *
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	void writeSnapshot() throws IOException;
+
+	/**
+	 * Clear every histogram and counter.
+	 */
+	void reset();
+}
@@ -0,0 +1,60 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Finds the payload holding a record's data. ReDBox records keep it in a
+ * payload ending in '.tfpackage', Mint records in 'metadata.json'.
+ */
+final class DataPayloads {
+
+	/** Data payload of Mint records */
+	static final String MINT_DATA_PAYLOAD_NAME = "metadata.json";
+
+	/** Data payload */
+	static final String DATA_PAYLOAD_SUFFIX = ".tfpackage";
+
+	private DataPayloads() {
+	}
+
+	/**
+	 * Get the data payload (ending in '.tfpackage', or Mint's
+	 * 'metadata.json') from the provided object.
+	 *
+	 * @param object
+	 *            The digital object holding our payload
+	 * @return Payload The payload requested
+	 * @throws StorageException
+	 *             if an errors occurs or the payload is not found
+	 */
+	static Payload getDataPayload(DigitalObject object) throws StorageException {
+		for (String pid : object.getPayloadIdList()) {
+			if (pid.endsWith(DATA_PAYLOAD_SUFFIX)
+					|| pid.equals(MINT_DATA_PAYLOAD_NAME)) {
+				return object.getPayload(pid);
+			}
+		}
+		throw new StorageException("Data payload not found on storage!");
+	}
+
+	/**
+	 * Get the data payload ending in '.tfpackage' from the provided object.
+	 *
+	 * @param object
+	 *            The digital object holding our payload
+	 * @return Payload The payload requested
+	 * @throws StorageException
+	 *             if an errors occurs or the payload is not found
+	 */
+	static Payload getPackagePayload(DigitalObject object)
+			throws StorageException {
+		for (String pid : object.getPayloadIdList()) {
+			if (pid.endsWith(DATA_PAYLOAD_SUFFIX)) {
+				return object.getPayload(pid);
+			}
+		}
+		throw new StorageException("Data payload not found on storage!");
+	}
+}
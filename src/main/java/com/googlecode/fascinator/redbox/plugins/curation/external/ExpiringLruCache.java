@@ -0,0 +1,157 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small, thread safe, size bounded cache. The least recently used entry is
+ * evicted once the cache is full, and entries older than the configured time
+ * to live are treated as absent.
+ *
+ * @param <K>
+ *            The key type
+ * @param <V>
+ *            The value type
+ */
+public class ExpiringLruCache<K, V> {
+
+	/** Maximum number of entries held */
+	private final int maxSize;
+
+	/** Time to live in milliseconds, zero or less never expires */
+	private final long ttl;
+
+	/** Entries in access order */
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	/** Number of lookups answered from the cache */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of lookups not answered from the cache */
+	private final AtomicLong misses = new AtomicLong();
+
+	public ExpiringLruCache(final int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get a cached value.
+	 *
+	 * @param key
+	 *            The key to look up
+	 * @return V The cached value, or null if absent or expired
+	 */
+	public V get(K key) {
+		synchronized (entries) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null && isExpired(entry)) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.value;
+		}
+	}
+
+	/**
+	 * Store a value, replacing anything already cached under the key.
+	 *
+	 * @param key
+	 *            The key to store under
+	 * @param value
+	 *            The value to store
+	 */
+	public void put(K key, V value) {
+		if (maxSize <= 0) {
+			return;
+		}
+		synchronized (entries) {
+			entries.put(key, new Entry<V>(value, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Remove a value from the cache.
+	 *
+	 * @param key
+	 *            The key to remove
+	 */
+	public void remove(K key) {
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Remove every key holding a value. This scans the whole cache.
+	 *
+	 * @param value
+	 *            The value to remove
+	 */
+	public void removeValue(V value) {
+		synchronized (entries) {
+			Iterator<Entry<V>> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().value.equals(value)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove every value from the cache.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private boolean isExpired(Entry<V> entry) {
+		return ttl > 0 && System.currentTimeMillis() - entry.created > ttl;
+	}
+
+	private static class Entry<V> {
+		private final V value;
+		private final long created;
+
+		private Entry(V value, long created) {
+			this.value = value;
+			this.created = created;
+		}
+	}
+}
@@ -1,12 +1,10 @@
 package com.googlecode.fascinator.redbox.plugins.curation.external;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Properties;
+import java.util.WeakHashMap;
 
-import org.apache.commons.lang.text.StrSubstitutor;
-import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,13 +12,10 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 import com.googlecode.fascinator.api.indexer.Indexer;
-import com.googlecode.fascinator.api.storage.DigitalObject;
-import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
-import com.googlecode.fascinator.common.storage.StorageUtils;
 import com.googlecode.fascinator.dao.GenericDao;
 import com.googlecode.fascinator.redbox.plugins.curation.external.dao.model.CurationJob;
 
@@ -40,183 +35,85 @@ public class ExternalCurationMessageBuilder {
 	@Qualifier(value = "fascinatorIndexer")
 	private Indexer indexer;
 
+	/** Storage reads shared within a message */
+	@Autowired
+	private ObjectSnapshotCache objectSnapshotCache;
+
+	/** Compiled identifier mappings by config payload */
+	private final Map<JsonSimple, IdentifierMappingTemplate> mappingTemplates = Collections
+			.synchronizedMap(new WeakHashMap<JsonSimple, IdentifierMappingTemplate>());
+
 	@Autowired
 	@Qualifier(value = "curationJobDao")
 	private GenericDao<CurationJob, Integer> curationJobDao;
 	
-	private static final String MINT_DATA_PAYLOAD_NAME = "metadata.json";
-
-	/** Data payload */
-	private static String DATA_PAYLOAD_SUFFIX = ".tfpackage";
+	public CurationJobMessage buildMessage(
+			Map<String, JsonObject> relationships) throws StorageException,
+			IOException {
+		return buildMessage(relationships, objectSnapshotCache.openScope());
+	}
 
-	@SuppressWarnings("unchecked")
-	public JsonSimple buildMessage(Map<String, JsonObject> relationships)
-			throws StorageException, IOException {
-		JsonObject messageObject = new JsonObject();
-		JSONArray records = new JSONArray();
+	/**
+	 * Build the curation manager message for a set of related objects,
+	 * reading storage through the provided scope. Record entries are only
+	 * created as the message is written.
+	 * 
+	 * @param relationships
+	 *            The related objects, by ID
+	 * @param scope
+	 *            The storage snapshot scope of the current message
+	 * @return CurationJobMessage The message to send
+	 * @throws StorageException
+	 *             if an object or its configuration cannot be read
+	 * @throws IOException
+	 *             if an error occurs building the message
+	 */
+	public CurationJobMessage buildMessage(
+			Map<String, JsonObject> relationships,
+			ObjectSnapshotCache.Scope scope) throws StorageException,
+			IOException {
+		CurationJobMessage message = new CurationJobMessage();
 		for (String oid : relationships.keySet()) {
-			JsonObject recordData = new JsonObject();
 			JsonObject relationship = relationships.get(oid);
 			if (relationship.get("id") != null) {
-				JsonSimple metadataJson = getDataFromStorage(oid);
-				recordData.put("metadata", metadataJson.getJsonObject());
-
-				Properties objMeta = storage.getObject(oid).getMetadata();
-				String jsonConfigOid = objMeta.getProperty("jsonConfigOid");
-				Payload jsonConfigPayload = StorageUtils.getPayload(storage,
-						jsonConfigOid, objMeta.getProperty("jsonConfigPid"));
-				JsonSimple jsonConfig = new JsonSimple(jsonConfigPayload.open());
-				boolean alreadyCurated = jsonConfig.getBoolean(true,
-						"curation", "alreadyCurated");
-
-				if (!alreadyCurated) {
-					JsonObject record = createRecordEntry(oid, metadataJson,
-							jsonConfig);
-					records.add(record);
+				JsonSimple metadataJson = scope.getData(oid);
+				if (metadataJson == null) {
+					throw new StorageException("Unable to read data of '"
+							+ oid + "'");
 				}
-			} else {
-				records.add(relationship);
-			}
-		}
-		messageObject.put("records", records);
-		return new JsonSimple(messageObject);
-	}
 
-	private JsonObject createRecordEntry(String oid, JsonSimple metadataJson,
-			JsonSimple jsonConfig) {
-		Map<String, String> valuesMap = buildStrSubstitutorValuesMap(metadataJson);
-		StrSubstitutor substitutor = new StrSubstitutor(valuesMap);
-
-		JsonObject record = new JsonObject();
-		record.put("oid", oid);
-		JsonObject generalMappings = jsonConfig.getObject("curation",
-				"identifierDataMapping", "general");
-		if (generalMappings != null) {
-			for (Object keyObject : generalMappings.keySet()) {
-				record.put(keyObject,
-						substitutor.replace(generalMappings.get(keyObject)));
-			}
-		}
-
-		JSONArray requiredIdentifiers = jsonConfig.getArray("curation",
-				"requiredIdentifiers");
-		// recordData.put("requiredIdentifiers", requiredIdentifiers);
-		JSONArray curationMessageRequiredIdentifiers = new JSONArray();
-		for (Object requiredIdentifierObject : requiredIdentifiers) {
-			JsonObject curationMessageRequiredIdentifierInfo = new JsonObject();
-			String requiredIdentifier = (String) requiredIdentifierObject;
-			curationMessageRequiredIdentifierInfo.put("identifier_type",
-					requiredIdentifier);
-
-			JsonObject requiredIdentifierMappings = jsonConfig.getObject(
-					"curation", "identifierDataMapping", requiredIdentifier);
-			if (requiredIdentifierMappings != null) {
-				JsonObject curationMessageRequiredIdentifierMetaData = new JsonObject();
-
-				for (Object keyObject : requiredIdentifierMappings.keySet()) {
-					String mappingDescriptor = (String) requiredIdentifierMappings
-							.get(keyObject);
-					curationMessageRequiredIdentifierMetaData.put(keyObject,
-							substitutor.replace(mappingDescriptor));
+				JsonSimple jsonConfig = scope.getConfig(oid);
+				if (jsonConfig == null) {
+					throw new StorageException(
+							"Unable to find configuration for OID '" + oid
+									+ "'");
 				}
-				curationMessageRequiredIdentifierInfo.put("metadata",
-						curationMessageRequiredIdentifierMetaData);
-			}
-			curationMessageRequiredIdentifiers
-					.add(curationMessageRequiredIdentifierInfo);
-		}
-		record.put("required_identifiers", curationMessageRequiredIdentifiers);
-
-		return record;
-	}
+				boolean alreadyCurated = jsonConfig.getBoolean(true,
+						"curation", "alreadyCurated");
 
-	private Map<String, String> buildStrSubstitutorValuesMap(
-			JsonSimple metadataJson) {
-		Map<String, String> values = new HashMap<String, String>();
-		JsonObject obj = metadataJson.getJsonObject();
-		for (Object o : obj.keySet()) {
-			String key = (String) o;
-			Object value = obj.get(key);
-			if (value instanceof String) {
-				values.put(key, (String) value);
-			} else if (value instanceof JsonObject) {
-				processJsonObjectToFlatMap((JsonObject) value, key, values);
-			} else {
-				if(value != null) {
-					values.put(key, value.toString());
+				if (!alreadyCurated) {
+					message.addRecord(oid, metadataJson.getJsonObject(),
+							getMappingTemplate(jsonConfig));
 				}
-			}
-		}
-		return values;
-	}
-
-	private void processJsonObjectToFlatMap(JsonObject jsonObject,
-			String parentKey, Map<String, String> valuesMap) {
-		for (Object o : jsonObject.keySet()) {
-			String key = (String) o;
-			Object value = jsonObject.get(key);
-			if (value instanceof String) {
-				valuesMap.put(parentKey + "." + key, (String) value);
-			} else if (value instanceof JsonObject) {
-				processJsonObjectToFlatMap((JsonObject) value, parentKey + "."
-						+ key, valuesMap);
 			} else {
-				valuesMap.put(parentKey + "." + key, value.toString());
-			}
-		}
-	}
-
-	/**
-	 * Get the stored data from storage for the indicated object.
-	 * 
-	 * @param oid
-	 *            The object we want
-	 */
-	private JsonSimple getDataFromStorage(String oid) {
-		// Get our data from Storage
-		Payload payload = null;
-		try {
-			DigitalObject object = storage.getObject(oid);
-			payload = getDataPayload(object);
-		} catch (StorageException ex) {
-			log.error("Error accessing object '{}' in storage: ", oid, ex);
-			return null;
-		}
-
-		// Parse the JSON
-		try {
-			try {
-				return new JsonSimple(payload.open());
-			} catch (IOException ex) {
-				log.error("Error parsing data '{}': ", oid, ex);
-				return null;
-			} finally {
-				payload.close();
+				message.addRecord(relationship);
 			}
-		} catch (StorageException ex) {
-			log.error("Error accessing data '{}' in storage: ", oid, ex);
-			return null;
 		}
+		return message;
 	}
 
 	/**
-	 * Get the data payload (ending in '.tfpackage') from the provided object.
-	 * 
-	 * @param object
-	 *            The digital object holding our payload
-	 * @return Payload The payload requested
-	 * @throws StorageException
-	 *             if an errors occurs or the payload is not found
+	 * Get the compiled identifier mappings of a harvest config. Configs are
+	 * shared from the snapshot cache until their payload changes, so each
+	 * payload is only compiled once.
 	 */
-	private Payload getDataPayload(DigitalObject object)
-			throws StorageException {
-		for (String pid : object.getPayloadIdList()) {
-			if (pid.endsWith(DATA_PAYLOAD_SUFFIX)
-					|| pid.equals(MINT_DATA_PAYLOAD_NAME)) {
-				return object.getPayload(pid);
-			}
+	private IdentifierMappingTemplate getMappingTemplate(JsonSimple jsonConfig) {
+		IdentifierMappingTemplate template = mappingTemplates.get(jsonConfig);
+		if (template == null) {
+			template = IdentifierMappingTemplate.compile(jsonConfig);
+			mappingTemplates.put(jsonConfig, template);
 		}
-		throw new StorageException("Data payload not found on storage!");
+		return template;
 	}
 
 	public void saveJob(CurationJob job) {
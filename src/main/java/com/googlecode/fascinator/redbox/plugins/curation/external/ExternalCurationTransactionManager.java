@@ -20,9 +20,9 @@ package com.googlecode.fascinator.redbox.plugins.curation.external;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -30,10 +30,6 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
-import org.apache.commons.io.FileUtils;
 import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,19 +37,14 @@ import org.slf4j.LoggerFactory;
 import com.googlecode.fascinator.api.PluginException;
 import com.googlecode.fascinator.api.PluginManager;
 import com.googlecode.fascinator.api.indexer.Indexer;
-import com.googlecode.fascinator.api.indexer.SearchRequest;
 import com.googlecode.fascinator.api.storage.DigitalObject;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.api.transaction.TransactionException;
-import com.googlecode.fascinator.common.BasicHttpClient;
-import com.googlecode.fascinator.common.FascinatorHome;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
-import com.googlecode.fascinator.common.solr.SolrDoc;
-import com.googlecode.fascinator.common.solr.SolrResult;
 import com.googlecode.fascinator.common.storage.StorageUtils;
 import com.googlecode.fascinator.common.transaction.GenericTransactionManager;
 import com.googlecode.fascinator.messaging.EmailNotificationConsumer;
@@ -71,9 +62,6 @@ import com.googlecode.fascinator.spring.ApplicationContextProvider;
  */
 public class ExternalCurationTransactionManager extends GenericTransactionManager {
 
-	/** Data payload */
-	private static String DATA_PAYLOAD_SUFFIX = ".tfpackage";
-
 	/** Workflow payload */
 	private static String WORKFLOW_PAYLOAD = "workflow.metadata";
 
@@ -120,6 +108,16 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 	private RelationshipMapper relationshipMapper;
 
 	private ExternalCurationMessageBuilder externalCurationMessageBuilder;
+
+	private IdentifierResolver identifierResolver;
+
+	private CurationJobJournal curationJobJournal;
+
+	private CurationHttpTransport httpTransport;
+
+	private ObjectSnapshotCache objectSnapshotCache;
+
+	private CurationMetrics curationMetrics;
 	
 	
 
@@ -214,6 +212,11 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 		
 		relationshipMapper = (RelationshipMapper)ApplicationContextProvider.getApplicationContext().getBean("relationshipMapper");
 		externalCurationMessageBuilder = (ExternalCurationMessageBuilder)ApplicationContextProvider.getApplicationContext().getBean("externalCurationMessageBuilder");
+		identifierResolver = (IdentifierResolver)ApplicationContextProvider.getApplicationContext().getBean("identifierResolver");
+		curationJobJournal = (CurationJobJournal)ApplicationContextProvider.getApplicationContext().getBean("curationJobJournal");
+		httpTransport = (CurationHttpTransport)ApplicationContextProvider.getApplicationContext().getBean("curationHttpTransport");
+		objectSnapshotCache = (ObjectSnapshotCache)ApplicationContextProvider.getApplicationContext().getBean("objectSnapshotCache");
+		curationMetrics = (CurationMetrics)ApplicationContextProvider.getApplicationContext().getBean("curationMetrics");
 	
 	}
 
@@ -245,40 +248,6 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 
 	
 
-	private String idToOid(String identifier) {
-		// Build a query
-		String query = "known_ids:\"" + identifier + "\"";
-		SearchRequest request = new SearchRequest(query);
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-		// Now search and parse response
-		SolrResult result = null;
-		try {
-			indexer.search(request, out);
-			InputStream in = new ByteArrayInputStream(out.toByteArray());
-			result = new SolrResult(in);
-		} catch (Exception ex) {
-			log.error("Error searching Solr: ", ex);
-			return null;
-		}
-
-		// Verify our results
-		if (result.getNumFound() == 0) {
-			log.error("Cannot resolve ID '{}'", identifier);
-			return null;
-		}
-		if (result.getNumFound() > 1) {
-			log.error("Found multiple OIDs for ID '{}'", identifier);
-			return null;
-		}
-
-		// Return our result
-		SolrDoc doc = result.getResults().get(0);
-		return doc.getFirst("storage_id");
-	}
-
-	
-
 	/**
 	 * Get the requested object ready for publication. This would typically just
 	 * involve setting a flag
@@ -297,6 +266,7 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 		JsonSimple response = new JsonSimple();
 		try {
 			DigitalObject object = storage.getObject(oid);
+			CurationMetrics.count(CurationMetrics.Operation.STORAGE);
 			Properties metadata = object.getMetadata();
 			// Already published?
 			if (!metadata.containsKey(PUBLISH_PROPERTY)) {
@@ -358,6 +328,20 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 		}
 
 		JSONArray relations = data.writeArray("relationships");
+
+		// Resolve every local identifier we will need in one lookup
+		List<String> identifiers = new ArrayList<String>();
+		for (Object relation : relations) {
+			JsonSimple json = new JsonSimple((JsonObject) relation);
+			String identifier = json.getString(null, "identifier");
+			if (json.getString(null, "oid") == null && identifier != null
+					&& brokerUrl.equals(json.getString(null, "broker"))) {
+				identifiers.add(identifier);
+			}
+		}
+		Map<String, String> resolvedOids = identifierResolver
+				.resolveAll(identifiers);
+
 		for (Object relation : relations) {
 			JsonSimple json = new JsonSimple((JsonObject) relation);
 			String broker = json.getString(null, "broker");
@@ -371,7 +355,7 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 				if (identifier == null) {
 					log.error("NULL identifer provided!");
 				}
-				relatedOid = idToOid(identifier);
+				relatedOid = resolvedOids.get(identifier);
 				if (relatedOid == null) {
 					log.error("Cannot resolve identifer: '{}'", identifier);
 				}
@@ -416,6 +400,18 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 	@Override
 	public JsonSimple parseMessage(JsonSimple message)
 			throws TransactionException {
+		CurationMetrics.Message metricsMessage = curationMetrics
+				.beginMessage(CurationMetrics.getTaskType(message));
+		try {
+			return processMessage(message, metricsMessage);
+		} finally {
+			curationMetrics.endMessage(metricsMessage);
+		}
+	}
+
+	private JsonSimple processMessage(JsonSimple message,
+			CurationMetrics.Message metricsMessage)
+			throws TransactionException {
 		log.debug("\n{}", message.toString(true));
 
 		// A standard harvest event
@@ -508,11 +504,23 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 			// Curation
 			if (task.startsWith("curation")) {
 				try {
-					Map<String, JsonObject> relationships = relationshipMapper.getRelationshipMap(oid);
+					long stageStart = System.nanoTime();
+					ObjectSnapshotCache.Scope scope = objectSnapshotCache.openScope();
+					Map<String, JsonObject> relationships = relationshipMapper.getRelationshipMap(oid, scope);
+					stageStart = curationMetrics.recordStage(metricsMessage,
+							CurationMetrics.Stage.RELATIONSHIP_MAPPING, stageStart);
 					CurationJob job = buildCurationJob(relationships);
-					JsonSimple externalCurationMessage = externalCurationMessageBuilder.buildMessage(relationships);
+					CurationJobMessage externalCurationMessage = externalCurationMessageBuilder.buildMessage(relationships, scope);
+					stageStart = curationMetrics.recordStage(metricsMessage,
+							CurationMetrics.Stage.MESSAGE_BUILDING, stageStart);
 					
 					JsonSimple externalCurationResponse = createJobInExternalCurationManager(externalCurationMessage);
+					// Records are mapped as the request body is written
+					long mappingTime = externalCurationMessage.getMappingTime();
+					curationMetrics.recordStageTime(metricsMessage,
+							CurationMetrics.Stage.RECORD_MAPPING, mappingTime);
+					stageStart = curationMetrics.recordStage(metricsMessage,
+							CurationMetrics.Stage.CURATION_MANAGER_POST, stageStart + mappingTime);
 					if(externalCurationResponse != null) {
 						String jobId = externalCurationResponse.getString(null, "job_id");
 						if(jobId == null) {
@@ -521,19 +529,12 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 						job.setCurationJobId(jobId);
 						log.info("Request was made to external curation manager and has been assigned job id: "+ jobId);
 						externalCurationMessageBuilder.saveJob(job);
-						File inProgressCurationJobsFile = new File(FascinatorHome.getPath()+"/curation-status-responses/inProgressJobs.json");
-						JsonObject inProgressJobs;
-						if(!inProgressCurationJobsFile.exists()) {
-							inProgressJobs = new JsonObject();
-							inProgressJobs.put("inProgressJobs",new JSONArray());
-						} else {
-							inProgressJobs = new JsonSimple(inProgressCurationJobsFile).getJsonObject();
-						}
-						JSONArray inProgressJobsArray = (JSONArray)inProgressJobs.get("inProgressJobs");
-						inProgressJobsArray.add(job.getCurationJobId());
-						
-						FileUtils.writeStringToFile(inProgressCurationJobsFile, new JsonSimple(inProgressJobs).toString(true));
+						curationJobJournal.jobCreated(job.getCurationJobId());
+						stageStart = curationMetrics.recordStage(metricsMessage,
+								CurationMetrics.Stage.JOB_PERSISTENCE, stageStart);
 						setCurationJobIdOnObject(oid,job.getCurationJobId());
+						curationMetrics.recordStage(metricsMessage,
+								CurationMetrics.Stage.OBJECT_METADATA_UPDATE, stageStart);
 					}
 				} catch (IOException e) {
 					throw new TransactionException("Error in resolving relationships during curation",e);
@@ -552,12 +553,14 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 
 	private void setCurationJobIdOnObject(String oid, String curationJobId) throws StorageException, IOException {
 		DigitalObject object = StorageUtils.getDigitalObject(storage, oid);
+		CurationMetrics.count(CurationMetrics.Operation.STORAGE);
 		Properties tfObjMeta = object.getMetadata();
 		tfObjMeta.setProperty("curationJobId", curationJobId);
 		ByteArrayOutputStream metaOut = new ByteArrayOutputStream();
 		tfObjMeta.store(metaOut, "");
         InputStream metaIn = new ByteArrayInputStream(metaOut.toByteArray());
         object.updatePayload("TF-OBJ-META", metaIn);
+        CurationMetrics.count(CurationMetrics.Operation.STORAGE);
         metaIn.close();
 	}
 
@@ -699,6 +702,7 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 	private void clearRenderFlag(String oid) {
 		try {
 			DigitalObject object = storage.getObject(oid);
+			CurationMetrics.count(CurationMetrics.Operation.STORAGE);
 			Properties props = object.getMetadata();
 			props.setProperty("render-pending", "false");
 			object.close();
@@ -716,6 +720,7 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 	private void setRenderFlag(String oid) {
 		try {
 			DigitalObject object = storage.getObject(oid);
+			CurationMetrics.count(CurationMetrics.Operation.STORAGE);
 			Properties props = object.getMetadata();
 			props.setProperty("render-pending", "true");
 			object.close();
@@ -833,44 +838,7 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 	 *            The object we want config for
 	 */
 	private JsonSimple getConfigFromStorage(String oid) {
-		String configOid = null;
-		String configPid = null;
-
-		// Get our object and look for its config info
-		try {
-			DigitalObject object = storage.getObject(oid);
-			Properties metadata = object.getMetadata();
-			configOid = metadata.getProperty("jsonConfigOid");
-			configPid = metadata.getProperty("jsonConfigPid");
-		} catch (StorageException ex) {
-			log.error("Error accessing object '{}' in storage: ", oid, ex);
-			return null;
-		}
-
-		// Validate
-		if (configOid == null || configPid == null) {
-			log.error("Unable to find configuration for OID '{}'", oid);
-			return null;
-		}
-
-		// Grab the config from storage
-		try {
-			DigitalObject object = storage.getObject(configOid);
-			Payload payload = object.getPayload(configPid);
-			try {
-				return new JsonSimple(payload.open());
-			} catch (IOException ex) {
-				log.error("Error accessing config '{}' in storage: ",
-						configOid, ex);
-			} finally {
-				payload.close();
-			}
-		} catch (StorageException ex) {
-			log.error("Error accessing object in storage: ", ex);
-		}
-
-		// Something screwed the pooch
-		return null;
+		return objectSnapshotCache.getConfig(oid);
 	}
 
 	
@@ -886,7 +854,8 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 		Payload payload = null;
 		try {
 			DigitalObject object = storage.getObject(oid);
-			payload = getDataPayload(object);
+			CurationMetrics.count(CurationMetrics.Operation.STORAGE);
+			payload = DataPayloads.getPackagePayload(object);
 		} catch (StorageException ex) {
 			log.error("Error accessing object '{}' in storage: ", oid, ex);
 			return null;
@@ -911,25 +880,6 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 
 	
 
-	/**
-	 * Get the data payload (ending in '.tfpackage') from the provided object.
-	 * 
-	 * @param object
-	 *            The digital object holding our payload
-	 * @return Payload The payload requested
-	 * @throws StorageException
-	 *             if an errors occurs or the payload is not found
-	 */
-	private Payload getDataPayload(DigitalObject object)
-			throws StorageException {
-		for (String pid : object.getPayloadIdList()) {
-			if (pid.endsWith(DATA_PAYLOAD_SUFFIX)) {
-				return object.getPayload(pid);
-			}
-		}
-		throw new StorageException("Data payload not found on storage!");
-	}
-
 	private boolean workflowCompleted(String step) {
 				if (step == null || !step.equals("live")) {
 			log.debug("Workflow step '{}', ignoring.", step);
@@ -953,6 +903,7 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 		Payload payload = null;
 		try {
 			DigitalObject object = storage.getObject(oid);
+			CurationMetrics.count(CurationMetrics.Operation.STORAGE);
 			payload = object.getPayload(WORKFLOW_PAYLOAD);
 		} catch (StorageException ex) {
 			log.error("Error accessing object '{}' in storage: ", oid, ex);
@@ -975,50 +926,21 @@ public class ExternalCurationTransactionManager extends GenericTransactionManage
 		}
 	}
 
-	private JsonSimple createJobInExternalCurationManager(JsonSimple requestJson) throws IOException {
+	private JsonSimple createJobInExternalCurationManager(CurationJobMessage requestJson) throws IOException {
 		
-		PostMethod post;
 		try {
 			String url = systemConfig.getString(null, "curation",
 					"curation-manager-url");
 			url = url + "/job";
-			BasicHttpClient client = new BasicHttpClient(url);
-			post = new PostMethod(url);
-			StringRequestEntity requestEntity = new StringRequestEntity(
-				    requestJson.getArray("records").toString(),
-				    "application/json",
-				    "UTF-8");
-			post.setRequestEntity(requestEntity);
-			client.executeMethod(post);
-			int status = post.getStatusCode();
-			if (status != 200) {
-				String text = post.getStatusText();
-				log.error(String
-						.format("Error accessing Curation Manager, status code '%d' returned with message: %s",
-								 status, text));
-				log.error(String
-						.format("Request message was: %s",
-								 requestJson.toString()));
-				return null;
-			}
-
+			return httpTransport.postJson("curation-manager/job", url,
+					requestJson);
 		} catch (IOException ex) {
-			log.error("Error during search: ", ex);
+			log.error("Error accessing Curation Manager: ", ex);
+			log.error(String
+					.format("Request message was: %s",
+							 requestJson.toString()));
 			return null;
 		}
-
-		// Return our results body
-		String response = null;
-		try {
-			response = post.getResponseBodyAsString();
-		} catch (IOException ex) {
-			log.error("Error accessing response body: ", ex);
-			return null;
-		}
-
-		JsonSimple curationManagerResponseJson = new JsonSimple(response);
-		
-		return curationManagerResponseJson;
 	}
 	
 }
@@ -21,12 +21,12 @@ package com.googlecode.fascinator.redbox.plugins.curation.external;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,40 +44,69 @@ public class FormDataParser {
 	private static Logger log = LoggerFactory.getLogger(FormDataParser.class);
 
     /** Excluded top level nodes from parse */
-    private static final List<String> EXCLUDED_FIELDS =
+    static final List<String> EXCLUDED_FIELDS =
             Arrays.asList("metaList", "relationships", "responses");
 
     /**
-     * A wrapper for Stream based parsing. This method accepts a String and
-     * will internally create a Stream for it.
+     * Parse raw JSON form data from a String. Field name String literals will
+     * be broken down into meaningful JSON data structures.
+     *
+     * The form data is tokenized once and built straight into the response.
+     * Anything the single pass parser does not handle is given to
+     * {@link #parseTree(String)}, so results and errors are the same.
      *
      * @param input The form data to parse from a String
      * @return JsonSimple The parsed form data in JSON
      * @throws IOException if there are errors reading/parsing the form data
      */
     public static JsonSimple parse(String input) throws IOException {
-        ByteArrayInputStream bytes = new ByteArrayInputStream(
-                input.getBytes("UTF-8"));
-        return parse(bytes);
+        JsonSimple responseData = SinglePassFormDataParser.parse(input);
+        if (responseData == null) {
+            responseData = parseTree(input);
+        }
+        return responseData;
     }
 
     /**
-     * Accept and parse raw JSON data from an InputStream. Field name String
-     * literals will be broken down into meaningful JSON data structures.
+     * Accept and parse raw JSON data from an InputStream, as
+     * {@link #parse(String)} does. The stream is read into memory first and
+     * then closed, the input is not parsed as it arrives, as the fallback to
+     * the tree parser may need to read it again.
      *
      * @param input The form data to parse from an InputStream
      * @return JsonSimple The parsed form data in JSON
      * @throws IOException if there are errors reading/parsing the form data
      */
     public static JsonSimple parse(InputStream input) throws IOException {
+        if (input == null) {
+            return new JsonSimple();
+        }
+        String json;
+        try {
+            json = IOUtils.toString(input, "UTF-8");
+        } finally {
+            input.close();
+        }
+        return parse(json);
+    }
+
+    /**
+     * Parse raw JSON form data by first reading it into a JSON tree and then
+     * walking every top level node. This is the original parser, kept as the
+     * reference for (and fallback of) the single pass parser.
+     *
+     * @param input The form data to parse from a String
+     * @return JsonSimple The parsed form data in JSON
+     * @throws IOException if there are errors reading/parsing the form data
+     */
+    public static JsonSimple parseTree(String input) throws IOException {
         JsonSimple inputData = new JsonSimple(input);
         JsonSimple responseData = new JsonSimple();
-        
-        
-        if(inputData.getObject("data") == null) {
-        	// Go through every top level node
-        	JsonObject object = inputData.getJsonObject();
-        	for (Object key : object.keySet()) {
+
+        if (inputData.getObject("data") == null) {
+            // Go through every top level node
+            JsonObject object = inputData.getJsonObject();
+            for (Object key : object.keySet()) {
                 // Ignoring some non-form related nodes
                 String strKey = validString(key);
                 if (!EXCLUDED_FIELDS.contains(strKey)) {
@@ -87,7 +116,7 @@ public class FormDataParser {
                 }
             }
         }
-        
+
         return responseData;
     }
 
@@ -232,7 +261,7 @@ public class FormDataParser {
      * @throws IOException if anything other than an object is found, or an
      * invalid index is provided
      */
-    private static JsonObject getObject(JSONArray array, int index)
+    static JsonObject getObject(JSONArray array, int index)
             throws IOException {
         // We can't just jam an entry into the array without
         //  checking that earlier indexes exist. Also we need
@@ -272,7 +301,7 @@ public class FormDataParser {
      * @return JSONArray The child we found or created
      * @throws IOException if there is a type mismatch on existing data
      */
-    private static JSONArray getArray(JsonObject object, String key)
+    static JSONArray getArray(JsonObject object, String key)
             throws IOException {
         // Get the existing one
         if (object.containsKey(key)) {
@@ -301,7 +330,7 @@ public class FormDataParser {
      * @return JsonObject The child we found or created
      * @throws IOException if there is a type mismatch on existing data
      */
-    private static JsonObject getObject(JsonObject object, String key)
+    static JsonObject getObject(JsonObject object, String key)
             throws IOException {
         // Get the existing one
         if (object.containsKey(key)) {
@@ -331,7 +360,7 @@ public class FormDataParser {
      * @return int The parsed integer, or -1 if it is not an integer
      * @throws IOException if errors occur during the parse
      */
-    private static int parseInt(String integer) throws IOException {
+    static int parseInt(String integer) throws IOException {
         try {
             int value = Integer.parseInt(integer);
             if (value < 0) {
@@ -0,0 +1,285 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.text.StrLookup;
+import org.apache.commons.lang.text.StrSubstitutor;
+import org.json.simple.JSONArray;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * The identifier data mappings (curation/identifierDataMapping) and required
+ * identifiers of a harvest config, compiled once so they can be applied to
+ * any number of records.
+ *
+ * Each mapping is a StrSubstitutor style template of literal text and
+ * '${path}' variables. Paths are looked up in the record's metadata only
+ * when a template needs them, without flattening the whole document. A path
+ * names either a top level key, or a chain of nested object keys joined by
+ * '.'. Templates StrSubstitutor would treat specially (escaped variables, or
+ * values that hold variables themselves) are handed to StrSubstitutor, so the
+ * output is the same as substituting against the flattened metadata.
+ */
+public class IdentifierMappingTemplate {
+
+	/** General mappings, by record key */
+	private final Map<Object, Template> general;
+
+	/** Required identifier types and their mappings */
+	private final List<RequiredIdentifier> requiredIdentifiers;
+
+	/** Every metadata path the templates refer to */
+	private final Set<String> paths;
+
+	private IdentifierMappingTemplate(Map<Object, Template> general,
+			List<RequiredIdentifier> requiredIdentifiers, Set<String> paths) {
+		this.general = general;
+		this.requiredIdentifiers = requiredIdentifiers;
+		this.paths = Collections.unmodifiableSet(paths);
+	}
+
+	/**
+	 * Compile the mappings of a harvest config.
+	 *
+	 * @param config
+	 *            The harvest config
+	 * @return IdentifierMappingTemplate The compiled mappings
+	 */
+	public static IdentifierMappingTemplate compile(JsonSimple config) {
+		Set<String> paths = new LinkedHashSet<String>();
+
+		Map<Object, Template> general = null;
+		JsonObject generalMappings = config.getObject("curation",
+				"identifierDataMapping", "general");
+		if (generalMappings != null) {
+			general = new LinkedHashMap<Object, Template>();
+			for (Object key : generalMappings.keySet()) {
+				Object mapping = generalMappings.get(key);
+				general.put(key, Template.compile(
+						mapping == null ? null : mapping.toString(), paths));
+			}
+		}
+
+		List<RequiredIdentifier> requiredIdentifiers = new ArrayList<RequiredIdentifier>();
+		JSONArray identifierTypes = config.getArray("curation",
+				"requiredIdentifiers");
+		if (identifierTypes != null) {
+			for (Object identifierType : identifierTypes) {
+				String type = (String) identifierType;
+				Map<Object, Template> mappings = null;
+				JsonObject identifierMappings = config.getObject("curation",
+						"identifierDataMapping", type);
+				if (identifierMappings != null) {
+					mappings = new LinkedHashMap<Object, Template>();
+					for (Object key : identifierMappings.keySet()) {
+						mappings.put(key, Template.compile(
+								(String) identifierMappings.get(key), paths));
+					}
+				}
+				requiredIdentifiers.add(new RequiredIdentifier(type, mappings));
+			}
+		}
+		return new IdentifierMappingTemplate(general, requiredIdentifiers,
+				paths);
+	}
+
+	/**
+	 * @return Set<String> Every metadata path the templates refer to
+	 */
+	public Set<String> getPaths() {
+		return paths;
+	}
+
+	/**
+	 * Create the curation manager record entry of an object.
+	 *
+	 * @param oid
+	 *            The object's OID
+	 * @param metadata
+	 *            The object's metadata
+	 * @return JsonObject The record entry
+	 */
+	@SuppressWarnings("unchecked")
+	public JsonObject createRecord(String oid, JsonObject metadata) {
+		MetadataLookup lookup = new MetadataLookup(metadata);
+
+		JsonObject record = new JsonObject();
+		record.put("oid", oid);
+		if (general != null) {
+			for (Map.Entry<Object, Template> entry : general.entrySet()) {
+				record.put(entry.getKey(), entry.getValue().render(lookup));
+			}
+		}
+
+		JSONArray curationMessageRequiredIdentifiers = new JSONArray();
+		for (RequiredIdentifier requiredIdentifier : requiredIdentifiers) {
+			JsonObject curationMessageRequiredIdentifierInfo = new JsonObject();
+			curationMessageRequiredIdentifierInfo.put("identifier_type",
+					requiredIdentifier.type);
+			if (requiredIdentifier.mappings != null) {
+				JsonObject curationMessageRequiredIdentifierMetaData = new JsonObject();
+				for (Map.Entry<Object, Template> entry : requiredIdentifier.mappings
+						.entrySet()) {
+					curationMessageRequiredIdentifierMetaData.put(
+							entry.getKey(), entry.getValue().render(lookup));
+				}
+				curationMessageRequiredIdentifierInfo.put("metadata",
+						curationMessageRequiredIdentifierMetaData);
+			}
+			curationMessageRequiredIdentifiers
+					.add(curationMessageRequiredIdentifierInfo);
+		}
+		record.put("required_identifiers", curationMessageRequiredIdentifiers);
+		return record;
+	}
+
+	/**
+	 * Find the value of a path in a metadata object. A key holding the whole
+	 * path wins, otherwise the longest matching key prefix naming an object
+	 * is searched for the rest of the path.
+	 *
+	 * @param object
+	 *            The object to look in
+	 * @param path
+	 *            The path to look for
+	 * @return String The value, or null if the path is not found
+	 */
+	static String resolve(JsonObject object, String path) {
+		Object value = object.get(path);
+		if (value != null && !(value instanceof JsonObject)) {
+			return value.toString();
+		}
+		for (int dot = path.lastIndexOf('.'); dot > 0; dot = path
+				.lastIndexOf('.', dot - 1)) {
+			Object child = object.get(path.substring(0, dot));
+			if (child instanceof JsonObject) {
+				String found = resolve((JsonObject) child,
+						path.substring(dot + 1));
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up and remembers metadata paths for a single record.
+	 */
+	private static class MetadataLookup extends StrLookup {
+		private final JsonObject metadata;
+		private final Map<String, String> values = new HashMap<String, String>();
+
+		private MetadataLookup(JsonObject metadata) {
+			this.metadata = metadata;
+		}
+
+		@Override
+		public String lookup(String path) {
+			if (values.containsKey(path)) {
+				return values.get(path);
+			}
+			String value = resolve(metadata, path);
+			values.put(path, value);
+			return value;
+		}
+	}
+
+	/**
+	 * A single compiled mapping.
+	 */
+	private static class Template {
+		/** The original template */
+		private final String source;
+
+		/** Literal text, with a variable path following each but the last */
+		private final String[] literals;
+
+		/** Variable paths */
+		private final String[] variables;
+
+		/** Escaped variables are left to StrSubstitutor */
+		private final boolean escaped;
+
+		private Template(String source, String[] literals, String[] variables) {
+			this.source = source;
+			this.literals = literals;
+			this.variables = variables;
+			this.escaped = source != null && source.contains("$${");
+		}
+
+		private static Template compile(String source, Set<String> paths) {
+			List<String> literals = new ArrayList<String>();
+			List<String> variables = new ArrayList<String>();
+			int start = 0;
+			if (source != null) {
+				while (true) {
+					int open = source.indexOf("${", start);
+					if (open == -1) {
+						break;
+					}
+					int close = source.indexOf('}', open + 2);
+					if (close == -1) {
+						break;
+					}
+					literals.add(source.substring(start, open));
+					variables.add(source.substring(open + 2, close));
+					start = close + 1;
+				}
+				literals.add(source.substring(start));
+			}
+			paths.addAll(variables);
+			return new Template(source,
+					literals.toArray(new String[literals.size()]),
+					variables.toArray(new String[variables.size()]));
+		}
+
+		private String render(MetadataLookup lookup) {
+			if (source == null) {
+				return null;
+			}
+			if (variables.length == 0) {
+				return source;
+			}
+			if (escaped) {
+				return new StrSubstitutor(lookup).replace(source);
+			}
+			StringBuilder builder = new StringBuilder(source.length());
+			for (int i = 0; i < variables.length; i++) {
+				builder.append(literals[i]);
+				String value = lookup.lookup(variables[i]);
+				if (value == null) {
+					builder.append("${").append(variables[i]).append('}');
+				} else if (value.contains("${") || value.endsWith("$")) {
+					// Substituted values are substituted again
+					return new StrSubstitutor(lookup).replace(source);
+				} else {
+					builder.append(value);
+				}
+			}
+			return builder.append(literals[variables.length]).toString();
+		}
+	}
+
+	/**
+	 * A required identifier type and its mappings.
+	 */
+	private static class RequiredIdentifier {
+		private final String type;
+		private final Map<Object, Template> mappings;
+
+		private RequiredIdentifier(String type, Map<Object, Template> mappings) {
+			this.type = type;
+			this.mappings = mappings;
+		}
+	}
+}
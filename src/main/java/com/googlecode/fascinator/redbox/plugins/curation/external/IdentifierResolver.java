@@ -0,0 +1,405 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import com.googlecode.fascinator.api.indexer.Indexer;
+import com.googlecode.fascinator.api.indexer.SearchRequest;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.common.solr.SolrDoc;
+import com.googlecode.fascinator.common.solr.SolrResult;
+
+/**
+ * Resolves record identifiers to storage OIDs through the Solr index. Lookups
+ * are batched into a single query per group of identifiers and resolved OIDs
+ * are kept in a bounded cache shared by every caller. Identifiers that could
+ * not be resolved are remembered for a shorter time, so unknown identifiers
+ * are not queried again by every message.
+ *
+ * Configured under curation/identifier-resolver with 'batchSize',
+ * 'cacheSize', 'cacheTtl', 'unresolvedTtl' (milliseconds) and 'maxPages'
+ * (pages of results read for one batch).
+ */
+@Component
+public class IdentifierResolver {
+
+	/** Default number of identifiers sent in one query */
+	private static final int DEFAULT_BATCH_SIZE = 50;
+
+	/** Default number of resolved identifiers kept */
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+
+	/** Default time to live of a resolved identifier, in milliseconds */
+	private static final int DEFAULT_CACHE_TTL = 300000;
+
+	/** Default time to live of an unresolvable identifier, in milliseconds */
+	private static final int DEFAULT_UNRESOLVED_TTL = 30000;
+
+	/** Default number of result pages read for one batch */
+	private static final int DEFAULT_MAX_PAGES = 5;
+
+	/** Logging **/
+	private Logger log = LoggerFactory.getLogger(IdentifierResolver.class);
+
+	/** Indexer */
+	@Autowired
+	@Qualifier(value = "fascinatorIndexer")
+	private Indexer indexer;
+
+	/** System configuration */
+	private JsonSimpleConfig systemConfig;
+
+	/** Number of identifiers sent in one query */
+	private int batchSize;
+
+	/** Number of result pages read for one batch */
+	private int maxPages;
+
+	/** Resolved identifiers */
+	private ExpiringLruCache<String, String> cache;
+
+	/** Identifiers recently found to be unknown or ambiguous */
+	private ExpiringLruCache<String, Boolean> unresolved;
+
+	/**
+	 * Whether the index stores 'known_ids', so batch results can be matched
+	 * back to identifiers. Null until a query has returned documents.
+	 */
+	private volatile Boolean knownIdsStored;
+
+	/** Number of queries sent to the index */
+	private final AtomicLong queryCount = new AtomicLong();
+
+	public IdentifierResolver() throws IOException {
+		this(new JsonSimpleConfig());
+	}
+
+	public IdentifierResolver(JsonSimpleConfig systemConfig) {
+		this.systemConfig = systemConfig;
+		batchSize = Math.max(1, systemConfig.getInteger(DEFAULT_BATCH_SIZE,
+				"curation", "identifier-resolver", "batchSize"));
+		int cacheSize = systemConfig.getInteger(DEFAULT_CACHE_SIZE,
+				"curation", "identifier-resolver", "cacheSize");
+		int cacheTtl = systemConfig.getInteger(DEFAULT_CACHE_TTL, "curation",
+				"identifier-resolver", "cacheTtl");
+		int unresolvedTtl = systemConfig.getInteger(DEFAULT_UNRESOLVED_TTL,
+				"curation", "identifier-resolver", "unresolvedTtl");
+		maxPages = Math.max(1, systemConfig.getInteger(DEFAULT_MAX_PAGES,
+				"curation", "identifier-resolver", "maxPages"));
+		cache = new ExpiringLruCache<String, String>(cacheSize, cacheTtl);
+		unresolved = new ExpiringLruCache<String, Boolean>(cacheSize,
+				unresolvedTtl);
+	}
+
+	/**
+	 * Resolve a single identifier.
+	 *
+	 * @param identifier
+	 *            The identifier to resolve
+	 * @return String The OID of the matching object, or null if none or more
+	 *         than one object is found
+	 */
+	public String resolve(String identifier) {
+		if (identifier == null) {
+			return null;
+		}
+		List<String> identifiers = new ArrayList<String>();
+		identifiers.add(identifier);
+		return resolveAll(identifiers).get(identifier);
+	}
+
+	/**
+	 * Resolve many identifiers, querying the index only for those not already
+	 * cached.
+	 *
+	 * @param identifiers
+	 *            The identifiers to resolve
+	 * @return Map<String, String> Identifiers mapped to their OIDs.
+	 *         Identifiers that could not be resolved uniquely are absent.
+	 */
+	public Map<String, String> resolveAll(Collection<String> identifiers) {
+		Map<String, String> resolved = new HashMap<String, String>();
+		List<String> unknown = new ArrayList<String>();
+		for (String identifier : new LinkedHashSet<String>(identifiers)) {
+			if (identifier == null) {
+				continue;
+			}
+			String oid = cache.get(identifier);
+			if (oid != null) {
+				resolved.put(identifier, oid);
+			} else if (unresolved.get(identifier) == null) {
+				unknown.add(identifier);
+			}
+		}
+
+		for (int i = 0; i < unknown.size(); i += batchSize) {
+			List<String> batch = unknown.subList(i,
+					Math.min(i + batchSize, unknown.size()));
+			resolveBatch(batch, resolved);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Forget what is known about an identifier, eg. once it has been given
+	 * to an object.
+	 *
+	 * @param identifier
+	 *            The identifier to forget
+	 */
+	public void invalidate(String identifier) {
+		cache.remove(identifier);
+		unresolved.remove(identifier);
+	}
+
+	/**
+	 * Forget every identifier resolved to an object, eg. when the object is
+	 * given new identifiers.
+	 *
+	 * @param oid
+	 *            The object's OID
+	 */
+	public void invalidateObject(String oid) {
+		cache.removeValue(oid);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	public long getCacheHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getCacheMissCount() {
+		return cache.getMissCount();
+	}
+
+	public int getUnresolvedCacheSize() {
+		return unresolved.size();
+	}
+
+	public long getQueryCount() {
+		return queryCount.get();
+	}
+
+	/**
+	 * Resolve one batch of uncached identifiers. The batch is sent as a
+	 * single query and matching documents are read, a page at a time, then
+	 * matched back to identifiers through their stored 'known_ids'.
+	 *
+	 * Paging stops once an identifier turns out to be held by more than one
+	 * object, and the rest of the batch is queried again without it, so an
+	 * identifier shared by many objects does not have all of them read.
+	 * Otherwise paging stops after 'maxPages' and the identifiers left are
+	 * looked up on their own. An index
+	 * that does not store 'known_ids' cannot match batch results, so once
+	 * that is seen every identifier is looked up on its own instead.
+	 *
+	 * @param batch
+	 *            The identifiers to look for
+	 * @param resolved
+	 *            The map to add resolved identifiers to
+	 */
+	private void resolveBatch(List<String> batch, Map<String, String> resolved) {
+		if (Boolean.FALSE.equals(knownIdsStored)) {
+			for (String identifier : batch) {
+				resolveSingle(identifier, resolved);
+			}
+			return;
+		}
+
+		StringBuilder query = new StringBuilder("known_ids:(");
+		for (int i = 0; i < batch.size(); i++) {
+			if (i > 0) {
+				query.append(" OR ");
+			}
+			query.append('"').append(escape(batch.get(i))).append('"');
+		}
+		query.append(")");
+
+		// Allow room to notice identifiers held by more than one object
+		int rows = batch.size() * 2;
+		Set<String> wanted = new HashSet<String>(batch);
+		Map<String, String> found = new HashMap<String, String>();
+		Set<String> duplicates = new LinkedHashSet<String>();
+		boolean sawDocuments = false;
+		boolean sawKnownIds = false;
+		int start = 0;
+		int pages = 0;
+		int numFound;
+		do {
+			SolrResult result = search(query.toString(), start, rows,
+					"storage_id,known_ids");
+			if (result == null) {
+				return;
+			}
+			// Match each document back to the identifiers it answers
+			for (SolrDoc doc : result.getResults()) {
+				sawDocuments = true;
+				String oid = doc.getFirst("storage_id");
+				List<String> knownIds = doc.getList("known_ids");
+				if (oid == null || knownIds == null || knownIds.isEmpty()) {
+					continue;
+				}
+				sawKnownIds = true;
+				for (String knownId : knownIds) {
+					if (!wanted.contains(knownId)) {
+						continue;
+					}
+					String previous = found.put(knownId, oid);
+					if (previous != null && !previous.equals(oid)) {
+						duplicates.add(knownId);
+					}
+				}
+			}
+			numFound = result.getNumFound();
+			start += rows;
+			pages++;
+			// More pages are only read while no identifier is ambiguous
+		} while (start < numFound && pages < maxPages && duplicates.isEmpty());
+
+		if (sawDocuments && knownIdsStored == null) {
+			knownIdsStored = sawKnownIds;
+			if (!sawKnownIds) {
+				log.warn("The index does not store 'known_ids', identifiers"
+						+ " will be resolved one at a time");
+			}
+		}
+		if (sawDocuments && !sawKnownIds) {
+			for (String identifier : batch) {
+				resolveSingle(identifier, resolved);
+			}
+			return;
+		}
+
+		for (String identifier : duplicates) {
+			log.error("Found multiple OIDs for ID '{}'", identifier);
+			unresolved.put(identifier, Boolean.TRUE);
+		}
+		if (start < numFound) {
+			// Not every match was read, only ambiguous identifiers are certain
+			List<String> remaining = new ArrayList<String>(batch);
+			remaining.removeAll(duplicates);
+			if (remaining.size() < batch.size()) {
+				if (!remaining.isEmpty()) {
+					resolveBatch(remaining, resolved);
+				}
+			} else {
+				for (String identifier : remaining) {
+					resolveSingle(identifier, resolved);
+				}
+			}
+			return;
+		}
+
+		for (String identifier : batch) {
+			if (duplicates.contains(identifier)) {
+				continue;
+			}
+			String oid = found.get(identifier);
+			if (oid == null) {
+				log.error("Cannot resolve ID '{}'", identifier);
+				unresolved.put(identifier, Boolean.TRUE);
+				continue;
+			}
+			cache.put(identifier, oid);
+			resolved.put(identifier, oid);
+		}
+	}
+
+	/**
+	 * Resolve one identifier with its own query, trusting Solr's match.
+	 *
+	 * @param identifier
+	 *            The identifier to look for
+	 * @param resolved
+	 *            The map to add the identifier to, if resolved
+	 */
+	private void resolveSingle(String identifier, Map<String, String> resolved) {
+		SolrResult result = search(
+				"known_ids:\"" + escape(identifier) + "\"", 0, 2,
+				"storage_id");
+		if (result == null) {
+			return;
+		}
+		if (result.getNumFound() == 0) {
+			log.error("Cannot resolve ID '{}'", identifier);
+			unresolved.put(identifier, Boolean.TRUE);
+			return;
+		}
+		if (result.getNumFound() > 1) {
+			log.error("Found multiple OIDs for ID '{}'", identifier);
+			unresolved.put(identifier, Boolean.TRUE);
+			return;
+		}
+		String oid = result.getResults().get(0).getFirst("storage_id");
+		cache.put(identifier, oid);
+		resolved.put(identifier, oid);
+	}
+
+	/**
+	 * Send a query to the index.
+	 *
+	 * @param query
+	 *            The query
+	 * @param start
+	 *            The first row to return
+	 * @param rows
+	 *            The number of rows to return
+	 * @param fields
+	 *            The fields to return
+	 * @return SolrResult The result, or null if the search failed
+	 */
+	private SolrResult search(String query, int start, int rows, String fields) {
+		SearchRequest request = new SearchRequest(query);
+		request.setParam("start", String.valueOf(start));
+		request.setParam("rows", String.valueOf(rows));
+		request.setParam("fl", fields);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// Now search and parse response
+		try {
+			queryCount.incrementAndGet();
+			CurationMetrics.count(CurationMetrics.Operation.INDEX);
+			indexer.search(request, out);
+			InputStream in = new ByteArrayInputStream(out.toByteArray());
+			return new SolrResult(in);
+		} catch (Exception ex) {
+			log.error("Error searching Solr: ", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Escape an identifier for use inside a quoted Solr phrase.
+	 *
+	 * @param identifier
+	 *            The raw identifier
+	 * @return String The escaped identifier
+	 */
+	private String escape(String identifier) {
+		return identifier.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
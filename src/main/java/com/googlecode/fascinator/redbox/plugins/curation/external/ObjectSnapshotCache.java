@@ -0,0 +1,334 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+
+/**
+ * Caches what curation reads from storage. A {@link Scope} is opened for each
+ * message being processed and loads every object's data payload and
+ * properties at most once for the life of that message. Harvest config
+ * payloads, which are typically shared by thousands of records, are also
+ * kept across messages, keyed by config OID and PID. A cached config is
+ * served without touching storage until its revalidation interval passes,
+ * after which the payload's modification time is checked and the config
+ * reloaded only if it changed.
+ *
+ * Configured under curation/snapshot-cache with 'configCacheSize',
+ * 'configCacheTtl' and 'configRevalidateInterval' (milliseconds).
+ */
+@Component
+public class ObjectSnapshotCache {
+
+	/** Default number of config payloads kept */
+	private static final int DEFAULT_CONFIG_CACHE_SIZE = 100;
+
+	/** Default time to live of a cached config payload, in milliseconds */
+	private static final int DEFAULT_CONFIG_CACHE_TTL = 600000;
+
+	/**
+	 * Default time a cached config payload is trusted before its
+	 * modification time is checked again, in milliseconds
+	 */
+	private static final int DEFAULT_CONFIG_REVALIDATE_INTERVAL = 10000;
+
+	/** Logging **/
+	private Logger log = LoggerFactory.getLogger(ObjectSnapshotCache.class);
+
+	/** Storage */
+	@Autowired
+	@Qualifier(value = "fascinatorStorage")
+	private Storage storage;
+
+	/** Config payloads by config OID and PID */
+	private ExpiringLruCache<String, ConfigSnapshot> configs;
+
+	/** Time a cached config payload is trusted without checking storage */
+	private long configRevalidateInterval;
+
+	public ObjectSnapshotCache() throws IOException {
+		this(new JsonSimpleConfig());
+	}
+
+	public ObjectSnapshotCache(JsonSimpleConfig systemConfig) {
+		configs = new ExpiringLruCache<String, ConfigSnapshot>(
+				systemConfig.getInteger(DEFAULT_CONFIG_CACHE_SIZE, "curation",
+						"snapshot-cache", "configCacheSize"),
+				systemConfig.getInteger(DEFAULT_CONFIG_CACHE_TTL, "curation",
+						"snapshot-cache", "configCacheTtl"));
+		configRevalidateInterval = systemConfig.getInteger(
+				DEFAULT_CONFIG_REVALIDATE_INTERVAL, "curation",
+				"snapshot-cache", "configRevalidateInterval");
+	}
+
+	/**
+	 * Open a new scope. Objects read through the scope are not read again
+	 * until a new scope is opened.
+	 *
+	 * @return Scope The new scope
+	 */
+	public Scope openScope() {
+		return new Scope();
+	}
+
+	/**
+	 * Get the harvest config of an object outside of any scope. The config
+	 * payload itself is still served from the shared cache.
+	 *
+	 * @param oid
+	 *            The object we want config for
+	 * @return JsonSimple A copy of the config the caller is free to modify, or
+	 *         null if it cannot be found
+	 */
+	public JsonSimple getConfig(String oid) {
+		JsonSimple config = openScope().getConfig(oid);
+		if (config == null) {
+			return null;
+		}
+		return new JsonSimple(new JsonObject(config.getJsonObject()));
+	}
+
+	/**
+	 * Get a config payload. A cached payload checked recently is returned
+	 * without reading storage, otherwise it is reloaded if it changed since
+	 * it was cached.
+	 */
+	private JsonSimple loadConfig(String configOid, String configPid) {
+		String key = configOid + "/" + configPid;
+		ConfigSnapshot cached = configs.get(key);
+		long now = System.currentTimeMillis();
+		if (cached != null && now - cached.checked < configRevalidateInterval) {
+			return cached.config;
+		}
+		try {
+			DigitalObject object = storage.getObject(configOid);
+			CurationMetrics.count(CurationMetrics.Operation.STORAGE);
+			Payload payload = object.getPayload(configPid);
+			Long lastModified = payload.lastModified();
+			// Without a modification time we rely on the cache TTL alone
+			if (cached != null
+					&& (lastModified == null || lastModified
+							.equals(cached.lastModified))) {
+				cached.checked = now;
+				return cached.config;
+			}
+			try {
+				JsonSimple config = new JsonSimple(payload.open());
+				configs.put(key, new ConfigSnapshot(config, lastModified, now));
+				return config;
+			} catch (IOException ex) {
+				log.error("Error accessing config '{}' in storage: ",
+						configOid, ex);
+			} finally {
+				payload.close();
+			}
+		} catch (StorageException ex) {
+			log.error("Error accessing object in storage: ", ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Everything read from storage while processing one message. Scopes are
+	 * safe to share between the threads working on that message.
+	 */
+	public class Scope {
+
+		/** Raw data payloads */
+		private final Map<String, byte[]> payloads = new ConcurrentHashMap<String, byte[]>();
+
+		/** Parsed data payloads */
+		private final Map<String, JsonSimple> data = new ConcurrentHashMap<String, JsonSimple>();
+
+		/** Data payloads run through the form data parser */
+		private final Map<String, JsonSimple> formData = new ConcurrentHashMap<String, JsonSimple>();
+
+		/** Object properties */
+		private final Map<String, Properties> metadata = new ConcurrentHashMap<String, Properties>();
+
+		/** Config payloads by object */
+		private final Map<String, JsonSimple> objectConfigs = new ConcurrentHashMap<String, JsonSimple>();
+
+		private Scope() {
+		}
+
+		/**
+		 * Get the stored data for the indicated object. The same instance is
+		 * returned for the life of the scope, so changes made to it are seen
+		 * by later readers.
+		 *
+		 * @param oid
+		 *            The object we want
+		 * @return JsonSimple The data, or null if it cannot be read
+		 */
+		public JsonSimple getData(String oid) {
+			JsonSimple json = data.get(oid);
+			if (json == null) {
+				byte[] bytes = getPayloadBytes(oid);
+				if (bytes == null) {
+					return null;
+				}
+				try {
+					json = new JsonSimple(new ByteArrayInputStream(bytes));
+				} catch (IOException ex) {
+					log.error("Error parsing data '{}': ", oid, ex);
+					return null;
+				}
+				data.put(oid, json);
+			}
+			return json;
+		}
+
+		/**
+		 * Get the form data for the indicated object, parsed into a JSON
+		 * structure.
+		 *
+		 * @param oid
+		 *            The object we want
+		 * @return JsonSimple The form data, or null if it cannot be parsed
+		 */
+		public JsonSimple getFormData(String oid) {
+			JsonSimple json = formData.get(oid);
+			if (json == null) {
+				byte[] bytes = getPayloadBytes(oid);
+				if (bytes == null) {
+					return null;
+				}
+				try {
+					json = FormDataParser.parse(new ByteArrayInputStream(
+							bytes));
+				} catch (Exception ex) {
+					log.error("Error parsing data '{}': ", oid, ex);
+					return null;
+				}
+				formData.put(oid, json);
+			}
+			return json;
+		}
+
+		/**
+		 * Get the properties (TF-OBJ-META) of the indicated object.
+		 *
+		 * @param oid
+		 *            The object we want
+		 * @return Properties The object's properties
+		 * @throws StorageException
+		 *             if the object cannot be read
+		 */
+		public Properties getMetadata(String oid) throws StorageException {
+			Properties properties = metadata.get(oid);
+			if (properties == null) {
+				properties = storage.getObject(oid).getMetadata();
+				CurationMetrics.count(CurationMetrics.Operation.STORAGE);
+				metadata.put(oid, properties);
+			}
+			return properties;
+		}
+
+		/**
+		 * Get the harvest config of the indicated object. The config may be
+		 * shared with other objects and scopes and must not be modified.
+		 *
+		 * @param oid
+		 *            The object we want config for
+		 * @return JsonSimple The config, or null if it cannot be found
+		 */
+		public JsonSimple getConfig(String oid) {
+			JsonSimple config = objectConfigs.get(oid);
+			if (config != null) {
+				return config;
+			}
+
+			// Get our object and look for its config info
+			String configOid = null;
+			String configPid = null;
+			try {
+				Properties properties = getMetadata(oid);
+				configOid = properties.getProperty("jsonConfigOid");
+				configPid = properties.getProperty("jsonConfigPid");
+			} catch (StorageException ex) {
+				log.error("Error accessing object '{}' in storage: ", oid, ex);
+				return null;
+			}
+
+			// Validate
+			if (configOid == null || configPid == null) {
+				log.error("Unable to find configuration for OID '{}'", oid);
+				return null;
+			}
+
+			config = loadConfig(configOid, configPid);
+			if (config != null) {
+				objectConfigs.put(oid, config);
+			}
+			return config;
+		}
+
+		private byte[] getPayloadBytes(String oid) {
+			byte[] bytes = payloads.get(oid);
+			if (bytes != null) {
+				return bytes;
+			}
+			// Get our data from Storage
+			Payload payload = null;
+			try {
+				DigitalObject object = storage.getObject(oid);
+				CurationMetrics.count(CurationMetrics.Operation.STORAGE);
+				payload = DataPayloads.getDataPayload(object);
+			} catch (StorageException ex) {
+				log.error("Error accessing object '{}' in storage: ", oid, ex);
+				return null;
+			}
+
+			try {
+				try {
+					bytes = IOUtils.toByteArray(payload.open());
+				} catch (IOException ex) {
+					log.error("Error reading data '{}': ", oid, ex);
+					return null;
+				} finally {
+					payload.close();
+				}
+			} catch (StorageException ex) {
+				log.error("Error accessing data '{}' in storage: ", oid, ex);
+				return null;
+			}
+			payloads.put(oid, bytes);
+			return bytes;
+		}
+	}
+
+	/**
+	 * A cached config payload, the modification time it was read at and when
+	 * that was last checked against storage.
+	 */
+	private static class ConfigSnapshot {
+		private final JsonSimple config;
+		private final Long lastModified;
+		private volatile long checked;
+
+		private ConfigSnapshot(JsonSimple config, Long lastModified,
+				long checked) {
+			this.config = config;
+			this.lastModified = lastModified;
+			this.checked = checked;
+		}
+	}
+}
@@ -2,52 +2,53 @@ package com.googlecode.fascinator.redbox.plugins.curation.external;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 import com.googlecode.fascinator.api.indexer.Indexer;
 import com.googlecode.fascinator.api.indexer.IndexerException;
-import com.googlecode.fascinator.api.indexer.SearchRequest;
 import com.googlecode.fascinator.api.storage.DigitalObject;
-import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
-import com.googlecode.fascinator.api.transaction.TransactionException;
-import com.googlecode.fascinator.common.BasicHttpClient;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
-import com.googlecode.fascinator.common.solr.SolrDoc;
-import com.googlecode.fascinator.common.solr.SolrResult;
 import com.googlecode.fascinator.common.storage.StorageUtils;
 
+/**
+ * Publishes the records of completed curation jobs. Records of this system
+ * have their identifiers written to their object metadata and are indexed
+ * together with a single commit per job. Records of external systems are
+ * posted to every system at the same time. Each system's outcome is reported
+ * back to the caller, so one failing system does not hide the others.
+ *
+ * Configured under curation/publication with 'threads'.
+ */
 @Component
-public class PublicationHandler {
+public class PublicationHandler implements DisposableBean {
 
-	private static final String MINT_DATA_PAYLOAD_NAME = "metadata.json";
-
-	/** Data payload */
-	private static String DATA_PAYLOAD_SUFFIX = ".tfpackage";
+	/** Default number of external systems published to at once */
+	private static final int DEFAULT_THREADS = 4;
 
 	/** Logging **/
 	private Logger log = LoggerFactory.getLogger(PublicationHandler.class);
@@ -62,84 +63,186 @@ public class PublicationHandler {
 	@Qualifier(value = "fascinatorIndexer")
 	private Indexer indexer;
 
+	/** Forgets identifiers given to published records */
+	@Autowired
+	private IdentifierResolver identifierResolver;
+
+	/** HTTP access to external systems */
+	@Autowired
+	private CurationHttpTransport httpTransport;
+
 	/** System configuration */
 	private JsonSimpleConfig systemConfig;
 
 	private String system;
 
+	/** Workers publishing to external systems */
+	private ExecutorService executor;
+
 	public PublicationHandler() throws IOException {
-		systemConfig = new JsonSimpleConfig();
+		this(new JsonSimpleConfig());
+	}
+
+	public PublicationHandler(JsonSimpleConfig systemConfig) {
+		this.systemConfig = systemConfig;
 		system = systemConfig.getString("redbox", "system");
+		executor = Executors.newFixedThreadPool(systemConfig.getInteger(
+				DEFAULT_THREADS, "curation", "publication", "threads"),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"curation-publication-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 	}
 
-	public void publishRecords(ArrayList<JsonObject> records) throws StorageException, IOException, IndexerException {
-		Map<String,List<JsonObject>> systemRecordsMap = new HashMap<String, List<JsonObject>>();
+	/**
+	 * Publish the records of a completed job to their target systems.
+	 * 
+	 * @param records
+	 *            The job's records
+	 * @return PublicationResult The outcome for each target system
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for external systems
+	 */
+	public PublicationResult publishRecords(List<JsonObject> records)
+			throws InterruptedException {
+		return publishRecords(records, null);
+	}
+
+	/**
+	 * Publish the records of a completed job to some of their target
+	 * systems, eg. those that failed last time. Records of other systems and
+	 * of unsupported types are skipped.
+	 * 
+	 * @param records
+	 *            The job's records
+	 * @param systems
+	 *            The target systems to publish to, or null for every system
+	 * @return PublicationResult The outcome for each target system
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for external systems
+	 */
+	public PublicationResult publishRecords(List<JsonObject> records,
+			Collection<String> systems) throws InterruptedException {
+		PublicationResult result = new PublicationResult();
+		Map<String, List<JsonObject>> systemRecordsMap = new LinkedHashMap<String, List<JsonObject>>();
 		for (JsonObject record : records) {
 			String type = (String) record.get("type");
 			String targetSystem = systemConfig.getString(null, "curation",
 					"supported-types", type);
-			if(systemRecordsMap.get(targetSystem) == null) {
-				systemRecordsMap.put(targetSystem, new ArrayList<JsonObject>());
+			if (targetSystem == null) {
+				if (systems == null) {
+					result.getSystemResult(PublicationResult.UNSUPPORTED)
+							.failed(1, "No target system for type '" + type
+									+ "' of record '" + record.get("oid")
+									+ "'");
+				}
+				continue;
+			}
+			if (systems != null && !systems.contains(targetSystem)) {
+				continue;
+			}
+			List<JsonObject> targetSystemList = systemRecordsMap
+					.get(targetSystem);
+			if (targetSystemList == null) {
+				targetSystemList = new ArrayList<JsonObject>();
+				systemRecordsMap.put(targetSystem, targetSystemList);
 			}
-			List<JsonObject> targetSystemList = systemRecordsMap.get(targetSystem);
 			targetSystemList.add(record);
-			systemRecordsMap.put(targetSystem, targetSystemList);
+		}
 
+		// External systems are published to in the background...
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final String targetSystem : systemRecordsMap.keySet()) {
+			if (!targetSystem.equals(system)) {
+				final List<JsonObject> systemRecords = systemRecordsMap
+						.get(targetSystem);
+				final PublicationResult.SystemResult systemResult = result
+						.getSystemResult(targetSystem);
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						publishRecordInExternalSystem(systemRecords,
+								targetSystem, systemResult);
+					}
+				}));
+			}
 		}
-		for(String targetSystem: systemRecordsMap.keySet()) {
-			
-			if (targetSystem.equals(system)) {
-				for(JsonObject record : systemRecordsMap.get(targetSystem)) {
-					publishRecord(record);
-				}
-			} else {
-			publishRecordInExternalSystem(systemRecordsMap.get(targetSystem),targetSystem);
+
+		// ...while our own records are updated here
+		List<JsonObject> localRecords = systemRecordsMap.get(system);
+		if (localRecords != null) {
+			publishLocalRecords(localRecords, result.getSystemResult(system));
+		}
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException ex) {
+				log.error("Error publishing to external system: ",
+						ex.getCause());
+			}
 		}
+		if (!result.isSuccessful()) {
+			log.error("Publication incomplete: {}", result.getFailures());
 		}
+		return result;
+	}
 
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
 	}
 
-	private void publishRecordInExternalSystem(List<JsonObject> list, String sourceSystem) {
+	private void publishRecordInExternalSystem(List<JsonObject> list,
+			String sourceSystem, PublicationResult.SystemResult systemResult) {
 		JsonObject records = new JsonObject();
 		records.put("records", list);
-		PostMethod post;
 		try {
 			String url = systemConfig.getString(null, "curation",
 					"external-system-urls","publish", sourceSystem);
-			BasicHttpClient client = new BasicHttpClient(url);
-			post = new PostMethod(url);
-			StringRequestEntity requestEntity = new StringRequestEntity(
-					new JsonSimple(records).toString(),
-				    "application/json",
-				    "UTF-8");
-			post.setRequestEntity(requestEntity);
-			client.executeMethod(post);
-			int status = post.getStatusCode();
-			if (status != 200) {
-				String text = post.getStatusText();
-				log.error(String
-						.format("Error accessing Curation Manager, status code '%d' returned with message: %s",
-								 status, text));
-				log.error(String
-						.format("Request message was: %s",
-								 new JsonSimple(records).toString()));
-				return;
-			}
-
+			httpTransport.post("publish/" + sourceSystem, url, records);
+			systemResult.published(list.size());
 		} catch (IOException ex) {
-			log.error("Error during search: ", ex);
-			return;
+			log.error(String.format("Error publishing to external system %s: ",
+					sourceSystem), ex);
+			log.error(String
+					.format("Request message was: %s",
+							 new JsonSimple(records).toString()));
+			systemResult.failed(list.size(), ex.getMessage());
+		} catch (RuntimeException ex) {
+			log.error(String.format("Error publishing to external system %s: ",
+					sourceSystem), ex);
+			systemResult.failed(list.size(), ex.toString());
 		}
+	}
 
-		// Return our results body
-		String response = null;
+	/**
+	 * Publish records of this system, then commit the index once for all of
+	 * them.
+	 */
+	private void publishLocalRecords(List<JsonObject> records,
+			PublicationResult.SystemResult systemResult) {
 		try {
-			response = post.getResponseBodyAsString();
-		} catch (IOException ex) {
-			log.error("Error accessing response body: ", ex);
-			return;
+			for (JsonObject record : records) {
+				String oid = (String) record.get("oid");
+				try {
+					publishRecord(record);
+					systemResult.published(1);
+				} catch (Exception ex) {
+					log.error("Error publishing record '{}': ", oid, ex);
+					systemResult.failed(1, "Record '" + oid + "': " + ex);
+				}
+			}
+		} finally {
+			indexer.commit();
 		}
-
 	}
 
 	private void publishRecord(JsonObject recordObject) throws StorageException, IOException, IndexerException {
@@ -148,22 +251,28 @@ public class PublicationHandler {
 		DigitalObject object = storage.getObject(oid);
 		Properties tfObjMeta = object.getMetadata();
 		JSONArray requiredIdentifiers = record.getArray("required_identifiers");
+		// Identifiers resolved to this object before may have changed
+		identifierResolver.invalidateObject(oid);
 		//Set all the pids as configured
 		for (Object requiredIdentifierObject : requiredIdentifiers) {
 			JsonSimple requiredIdentifier = new JsonSimple((JsonObject)requiredIdentifierObject);
 			String identifierPid = systemConfig.getString(null,"curation","identifier-pids",requiredIdentifier.getString(null,"identifier_type"));
-			tfObjMeta.put(identifierPid, requiredIdentifier.getString(null, "identifier"));
+			String identifier = requiredIdentifier.getString(null, "identifier");
+			tfObjMeta.put(identifierPid, identifier);
+			identifierResolver.invalidate(identifier);
 		}
 		
 		//Now publish the record
 		tfObjMeta.put("published", "true");
-		File tempFile = File.createTempFile("publication", "temporary");
-		FileOutputStream outputStream = new FileOutputStream(tempFile);
-		tfObjMeta.store(outputStream, null);
-		
-		FileInputStream inputStream = new FileInputStream(tempFile);
-		StorageUtils.createOrUpdatePayload(object,"TF-OBJ-META",inputStream);
-		tempFile.delete();
+		ByteArrayOutputStream metaOut = new ByteArrayOutputStream();
+		tfObjMeta.store(metaOut, null);
+		InputStream metaIn = new ByteArrayInputStream(metaOut.toByteArray());
+		try {
+			StorageUtils.createOrUpdatePayload(object, "TF-OBJ-META", metaIn);
+		} finally {
+			metaIn.close();
+		}
+		// Buffered by the indexer until the job is committed
 		indexer.index(oid);
 	}
 
@@ -0,0 +1,147 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of publishing the records of a curation job, by target system.
+ * A job may be published to some systems and fail on others.
+ */
+public class PublicationResult {
+
+	/** Results of records no target system is configured for */
+	public static final String UNSUPPORTED = "unsupported";
+
+	/** Results by target system */
+	private final Map<String, SystemResult> results = new LinkedHashMap<String, SystemResult>();
+
+	synchronized SystemResult getSystemResult(String system) {
+		SystemResult result = results.get(system);
+		if (result == null) {
+			result = new SystemResult(system);
+			results.put(system, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Map<String, SystemResult> Results by target system
+	 */
+	public synchronized Map<String, SystemResult> getResults() {
+		return Collections
+				.unmodifiableMap(new LinkedHashMap<String, SystemResult>(
+						results));
+	}
+
+	/**
+	 * @param system
+	 *            The target system
+	 * @return SystemResult The result of a target system, or null if no
+	 *         records were sent to it
+	 */
+	public synchronized SystemResult getResult(String system) {
+		return results.get(system);
+	}
+
+	/**
+	 * @return boolean True if every record was published to its target system
+	 */
+	public synchronized boolean isSuccessful() {
+		for (SystemResult result : results.values()) {
+			if (!result.isSuccessful()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return List<SystemResult> Results of the systems that did not publish
+	 *         every record
+	 */
+	public synchronized List<SystemResult> getFailures() {
+		List<SystemResult> failures = new ArrayList<SystemResult>();
+		for (SystemResult result : results.values()) {
+			if (!result.isSuccessful()) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return Set<String> The target systems that did not publish every
+	 *         record and are worth publishing to again. Records of
+	 *         unsupported types are not, they will never be published.
+	 */
+	public synchronized Set<String> getFailedSystems() {
+		Set<String> systems = new LinkedHashSet<String>();
+		for (SystemResult result : results.values()) {
+			if (!result.isSuccessful() && !UNSUPPORTED.equals(result.system)) {
+				systems.add(result.system);
+			}
+		}
+		return systems;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return results.values().toString();
+	}
+
+	/**
+	 * Records sent to one target system and the errors it reported.
+	 */
+	public static class SystemResult {
+		private final String system;
+		private int recordCount = 0;
+		private int publishedCount = 0;
+		private final List<String> errors = new ArrayList<String>();
+
+		private SystemResult(String system) {
+			this.system = system;
+		}
+
+		synchronized void published(int records) {
+			recordCount += records;
+			publishedCount += records;
+		}
+
+		synchronized void failed(int records, String error) {
+			recordCount += records;
+			errors.add(error);
+		}
+
+		public String getSystem() {
+			return system;
+		}
+
+		public synchronized int getRecordCount() {
+			return recordCount;
+		}
+
+		public synchronized int getPublishedCount() {
+			return publishedCount;
+		}
+
+		public synchronized List<String> getErrors() {
+			return new ArrayList<String>(errors);
+		}
+
+		public synchronized boolean isSuccessful() {
+			return errors.isEmpty();
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%s: %d/%d published%s", system,
+					publishedCount, recordCount, errors.isEmpty() ? ""
+							: " " + errors);
+		}
+	}
+}
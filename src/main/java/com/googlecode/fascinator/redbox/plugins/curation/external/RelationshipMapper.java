@@ -1,45 +1,54 @@
 package com.googlecode.fascinator.redbox.plugins.curation.external;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.json.simple.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
-import com.googlecode.fascinator.api.indexer.Indexer;
-import com.googlecode.fascinator.api.indexer.SearchRequest;
 import com.googlecode.fascinator.api.storage.DigitalObject;
-import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
 import com.googlecode.fascinator.api.transaction.TransactionException;
-import com.googlecode.fascinator.common.BasicHttpClient;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
-import com.googlecode.fascinator.common.solr.SolrDoc;
-import com.googlecode.fascinator.common.solr.SolrResult;
 
 @Component
-public class RelationshipMapper {
+public class RelationshipMapper implements DisposableBean {
 
-	private static final String MINT_DATA_PAYLOAD_NAME = "metadata.json";
+	/** Default number of threads expanding relationship graphs */
+	private static final int DEFAULT_TRAVERSAL_THREADS = 8;
 
-	/** Data payload */
-	private static String DATA_PAYLOAD_SUFFIX = ".tfpackage";
+	/** Default deadline in milliseconds for a relationship graph traversal */
+	private static final int DEFAULT_TRAVERSAL_TIMEOUT = 60000;
 
 	/** Logging **/
 	private Logger log = LoggerFactory
@@ -50,10 +59,17 @@ public class RelationshipMapper {
 	@Qualifier(value = "fascinatorStorage")
 	private Storage storage;
 
-	/** Indexer */
+	/** Identifier to OID lookups */
 	@Autowired
-	@Qualifier(value = "fascinatorIndexer")
-	private Indexer indexer;
+	private IdentifierResolver identifierResolver;
+
+	/** HTTP access to external systems */
+	@Autowired
+	private CurationHttpTransport httpTransport;
+
+	/** Storage reads shared within a message */
+	@Autowired
+	private ObjectSnapshotCache objectSnapshotCache;
 
 	/** System configuration */
 	private JsonSimpleConfig systemConfig;
@@ -63,8 +79,18 @@ public class RelationshipMapper {
 
 	private String system;
 
+	/** Worker pool used to expand relationship graphs */
+	private ExecutorService traversalExecutor;
+
+	/** Maximum time in milliseconds a single graph traversal may take */
+	private long traversalTimeout;
+
 	public RelationshipMapper() throws IOException {
-		systemConfig = new JsonSimpleConfig();
+		this(new JsonSimpleConfig());
+	}
+
+	public RelationshipMapper(JsonSimpleConfig systemConfig) {
+		this.systemConfig = systemConfig;
 		/** Relationship mapping */
 		relationFields = systemConfig.getJsonSimpleMap("curation", "relations");
 		if (relationFields == null) {
@@ -73,12 +99,49 @@ public class RelationshipMapper {
 		}
 
 		system = systemConfig.getString("redbox", "system");
+
+		/** Relationship graph traversal */
+		int threads = systemConfig.getInteger(DEFAULT_TRAVERSAL_THREADS,
+				"curation", "relationship-traversal", "threads");
+		traversalTimeout = systemConfig.getInteger(DEFAULT_TRAVERSAL_TIMEOUT,
+				"curation", "relationship-traversal", "timeout");
+		traversalExecutor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"relationship-traversal-"
+										+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 	}
 
 	public Map<String, JsonObject> getRelationshipMap(String oid)
 			throws IOException {
+		return getRelationshipMap(oid, objectSnapshotCache.openScope());
+	}
+
+	/**
+	 * Build the relationship map of an object, reading storage through the
+	 * provided scope so objects already read while processing the current
+	 * message are not read again.
+	 * 
+	 * @param oid
+	 *            The object ID to start from
+	 * @param scope
+	 *            The storage snapshot scope of the current message
+	 * @return Map<String, JsonObject> Every related object, by ID
+	 * @throws IOException
+	 *             if the traversal fails or exceeds its deadline
+	 */
+	public Map<String, JsonObject> getRelationshipMap(String oid,
+			ObjectSnapshotCache.Scope scope) throws IOException {
 		Map<String, JsonObject> relationshipMap = new HashMap<String, JsonObject>();
-		List<JsonObject> relations = getRelationshipsForObject(oid);
+		List<JsonObject> relations = getRelationshipsForObject(oid, scope);
 		for (JsonObject jsonObject : relations) {
 		    String id = (String) (jsonObject.get("id") == null? jsonObject.get("oid") : jsonObject.get("id"));
 			relationshipMap.put(id, jsonObject);
@@ -87,123 +150,148 @@ public class RelationshipMapper {
 		return relationshipMap;
 	}
 
+	/**
+	 * Walk the relationship graph starting at the provided object. Sibling
+	 * edges are expanded concurrently on the traversal pool and every node is
+	 * only expanded once, so cyclic links between records terminate.
+	 * 
+	 * @param oid
+	 *            The object ID to start from
+	 * @return List<JsonObject> The object itself and everything reachable
+	 *         from it, in no particular order
+	 * @throws IOException
+	 *             if the traversal fails or exceeds its deadline
+	 */
 	public List<JsonObject> getRelationshipsForObject(String oid)
 			throws IOException {
-		List<JsonObject> relationshipList = new ArrayList<JsonObject>();
+		return getRelationshipsForObject(oid, objectSnapshotCache.openScope());
+	}
+
+	private List<JsonObject> getRelationshipsForObject(String oid,
+			ObjectSnapshotCache.Scope scope) throws IOException {
+		Traversal traversal = new Traversal(scope);
+		traversal.expandLocal(oid);
+		return traversal.await(traversalTimeout);
+	}
+
+	/**
+	 * Expand a single local object, queueing each of its relationships for
+	 * expansion in turn.
+	 * 
+	 * @param traversal
+	 *            The traversal this node belongs to
+	 * @param oid
+	 *            The object ID to expand
+	 */
+	private void expandObject(Traversal traversal, String oid) {
 		JsonObject jsonObject = new JsonObject();
 		jsonObject.put("id", oid);
-		relationshipList.add(jsonObject);
-
-		JSONArray relationships = mapRelations(oid);
-		if (relationships != null) {
-			for (Object object : relationships) {
-
-				JsonSimple relationshipObject = new JsonSimple(
-						(JsonObject) object);
-				String sourceSystem = relationshipObject.getString(systemConfig.getString("redbox", "system"),
-						"system");
-				String relationOid = relationshipObject.getString(null, "oid");
-
-				List<JsonObject> subRelationships;
-				if (system.equals(sourceSystem)) {
-					if(relationOid == null) {
-						relationOid = findOidByIdentifier(relationshipObject.getString(null, "identifier"));
-					}
-					subRelationships = getRelationshipsForObject(relationOid);
-				} else {
-					if (relationOid != null) {
-						subRelationships = getRelationsForObjectByOidFromExternalSystem(
-								relationOid, sourceSystem);
-					} else {
-						subRelationships = getRelationsForObjectByExternalIdentifierFromExternalSystem(
-								relationshipObject
-										.getString(null, "identifier"),
-								sourceSystem);
-					}
+		traversal.add(jsonObject);
+
+		JSONArray relationships = mapRelations(traversal, oid);
+		if (relationships == null) {
+			return;
+		}
+		List<String> unresolved = new ArrayList<String>();
+		for (Object object : relationships) {
+			JsonSimple relationshipObject = new JsonSimple((JsonObject) object);
+			String sourceSystem = relationshipObject.getString(system,
+					"system");
+			String relationOid = relationshipObject.getString(null, "oid");
+			String identifier = relationshipObject.getString(null,
+					"identifier");
+
+			if (system.equals(sourceSystem)) {
+				if (relationOid != null) {
+					traversal.expandLocal(relationOid);
+				} else if (identifier != null) {
+					unresolved.add(identifier);
 				}
-
-				relationshipList.addAll(subRelationships);
-
+			} else {
+				traversal.expandExternal(sourceSystem, relationOid,
+						identifier);
 			}
 		}
+		// Local identifiers are resolved together in one lookup
+		if (!unresolved.isEmpty()) {
+			traversal.resolveLocal(unresolved);
+		}
+	}
 
-		return relationshipList;
+	/**
+	 * Look up the relationships of an object held in an external system.
+	 * External results are leaves of the graph and are not expanded further.
+	 * 
+	 * @param sourceSystem
+	 *            The system holding the object
+	 * @param relationOid
+	 *            The object's OID in that system, if known
+	 * @param identifier
+	 *            The object's identifier, used when no OID is known
+	 * @return List<JsonObject> The relationships found, possibly empty
+	 * @throws IOException
+	 *             if the response cannot be parsed
+	 */
+	private List<JsonObject> getRelationsFromExternalSystem(
+			String sourceSystem, String relationOid, String identifier)
+			throws IOException {
+		List<JsonObject> relations;
+		if (relationOid != null) {
+			relations = getRelationsForObjectByOidFromExternalSystem(
+					relationOid, sourceSystem);
+		} else {
+			relations = getRelationsForObjectByExternalIdentifierFromExternalSystem(
+					identifier, sourceSystem);
+		}
+		if (relations == null) {
+			return new ArrayList<JsonObject>();
+		}
+		return relations;
+	}
+
+	/**
+	 * Shutdown the traversal pool when the application context closes.
+	 */
+	@Override
+	public void destroy() {
+		traversalExecutor.shutdownNow();
 	}
 
 	private List<JsonObject> getRelationsForObjectByExternalIdentifierFromExternalSystem(
 			String identifier, String sourceSystem) throws IOException {
 		
-		GetMethod get;
+		JsonSimple externalSystemResponseJson;
 		try {
 			String url = systemConfig.getString(null, "curation",
 					"external-system-urls","relationships", sourceSystem);
-			url = url + "&identifier=" + identifier;
-			BasicHttpClient client = new BasicHttpClient(url);
-			get = new GetMethod(url);
-			client.executeMethod(get);
-			int status = get.getStatusCode();
-			if (status != 200) {
-				String text = get.getStatusText();
-				log.error(String
-						.format("Error access external system %s, status code '%d' returned with message: %s",
-								sourceSystem, status, text));
-				return null;
-			}
-
-		} catch (IOException ex) {
-			log.error("Error during search: ", ex);
-			return null;
-		}
-
-		// Return our results body
-		String response = null;
-		try {
-			response = get.getResponseBodyAsString();
+			url = url + "&identifier=" + URLEncoder.encode(identifier, "UTF-8");
+			externalSystemResponseJson = httpTransport.getJson(
+					"relationships/" + sourceSystem, url);
 		} catch (IOException ex) {
-			log.error("Error accessing response body: ", ex);
+			log.error(String.format("Error accessing external system %s: ",
+					sourceSystem), ex);
 			return null;
 		}
 
-		JsonSimple externalSystemResponseJson = new JsonSimple(response);
-		
 		return externalSystemResponseJson.getArray("records");
 	}
 
 	private List<JsonObject> getRelationsForObjectByOidFromExternalSystem(
 			String relationOid, String sourceSystem) throws IOException {
 		List<JsonObject> relations = new ArrayList<JsonObject>();
-		GetMethod get;
+		JsonSimple externalSystemResponseJson;
 		try {
 			String url = systemConfig.getString(null, "curation",
 					"external-system-urls", sourceSystem);
-			BasicHttpClient client = new BasicHttpClient(url + "&oid="
-					+ relationOid);
-			get = new GetMethod(url);
-			client.executeMethod(get);
-			int status = get.getStatusCode();
-			if (status != 200) {
-				String text = get.getStatusText();
-				log.error(String
-						.format("Error access external system %s, status code '%d' returned with message: %s",
-								sourceSystem, status, text));
-				return null;
-			}
-
-		} catch (IOException ex) {
-			log.error("Error during search: ", ex);
-			return null;
-		}
-
-		// Return our results body
-		String response = null;
-		try {
-			response = get.getResponseBodyAsString();
+			url = url + "&oid=" + URLEncoder.encode(relationOid, "UTF-8");
+			externalSystemResponseJson = httpTransport.getJson(
+					"relationships/" + sourceSystem, url);
 		} catch (IOException ex) {
-			log.error("Error accessing response body: ", ex);
+			log.error(String.format("Error accessing external system %s: ",
+					sourceSystem), ex);
 			return null;
 		}
 
-		JsonSimple externalSystemResponseJson = new JsonSimple(response);
 		Collection<Object> values = externalSystemResponseJson.getJsonObject()
 				.values();
 		for (Object object : values) {
@@ -215,20 +303,31 @@ public class RelationshipMapper {
 	/**
 	 * Map all the relationships buried in this record's data
 	 * 
+	 * @param traversal
+	 *            The traversal the object belongs to
 	 * @param oid
 	 *            The object ID being curated
 	 * @returns True is ready to proceed, otherwise False
 	 */
-	private JSONArray mapRelations(String oid) {
+	private JSONArray mapRelations(Traversal traversal, String oid) {
+		ObjectSnapshotCache.Scope scope = traversal.scope;
 		// We want our parsed data for reading
-		JsonSimple formData = parsedFormData(oid);
+		JsonSimple formData = scope.getFormData(oid);
+		if (traversal.isCancelled()) {
+			// The read may have failed because it was interrupted
+			return null;
+		}
 		if (formData == null) {
 			// could be using Mint's ingest relationship parser
-			JsonSimple rawData = getDataFromStorage(oid);
-			if (rawData.getArray("relationships") != null) {
-				JSONArray relations = rawData.getArray("relationships");
-				for (Object relationship : relations) {
-					((JsonObject) relationship).put("system", system);
+			JsonSimple rawData = scope.getData(oid);
+			if (rawData != null && rawData.getArray("relationships") != null) {
+				// Tag copies, the snapshot is shared with later readers
+				JSONArray relations = new JSONArray();
+				for (Object relationship : rawData.getArray("relationships")) {
+					JsonObject relation = new JsonObject(
+							(JsonObject) relationship);
+					relation.put("system", system);
+					relations.add(relation);
 				}
 				return relations;
 
@@ -238,7 +337,7 @@ public class RelationshipMapper {
 		}
 
 		// And raw data to see existing relations and write new ones
-		JsonSimple rawData = getDataFromStorage(oid);
+		JsonSimple rawData = scope.getData(oid);
 		if (rawData == null) {
 			log.error("Error reading data from storage");
 			return null;
@@ -295,6 +394,10 @@ public class RelationshipMapper {
 
 		// Do we need to store our object again?
 		if (changed) {
+			// An abandoned traversal must not write to storage
+			if (traversal.isCancelled()) {
+				return null;
+			}
 			try {
 				saveObjectData(rawData, oid);
 			} catch (TransactionException ex) {
@@ -411,93 +514,6 @@ public class RelationshipMapper {
 		return newRelation;
 	}
 
-	/**
-	 * Get the form data from storage for the indicated object and parse it into
-	 * a JSON structure.
-	 * 
-	 * @param oid
-	 *            The object we want
-	 */
-	private JsonSimple parsedFormData(String oid) {
-		// Get our data from Storage
-		Payload payload = null;
-		try {
-			DigitalObject object = storage.getObject(oid);
-			payload = getDataPayload(object);
-		} catch (StorageException ex) {
-			log.error("Error accessing object '{}' in storage: ", oid, ex);
-			return null;
-		}
-
-		// Parse the JSON
-		try {
-			try {
-				return FormDataParser.parse(payload.open());
-			} catch (Exception ex) {
-				log.error("Error parsing data '{}': ", oid, ex);
-				return null;
-			} finally {
-				payload.close();
-			}
-		} catch (StorageException ex) {
-			log.error("Error accessing data '{}' in storage: ", oid, ex);
-			return null;
-		}
-	}
-
-	/**
-	 * Get the stored data from storage for the indicated object.
-	 * 
-	 * @param oid
-	 *            The object we want
-	 */
-	private JsonSimple getDataFromStorage(String oid) {
-		// Get our data from Storage
-		Payload payload = null;
-		try {
-			DigitalObject object = storage.getObject(oid);
-			payload = getDataPayload(object);
-		} catch (StorageException ex) {
-			log.error("Error accessing object '{}' in storage: ", oid, ex);
-			return null;
-		}
-
-		// Parse the JSON
-		try {
-			try {
-				return new JsonSimple(payload.open());
-			} catch (IOException ex) {
-				log.error("Error parsing data '{}': ", oid, ex);
-				return null;
-			} finally {
-				payload.close();
-			}
-		} catch (StorageException ex) {
-			log.error("Error accessing data '{}' in storage: ", oid, ex);
-			return null;
-		}
-	}
-
-	/**
-	 * Get the data payload (ending in '.tfpackage') from the provided object.
-	 * 
-	 * @param object
-	 *            The digital object holding our payload
-	 * @return Payload The payload requested
-	 * @throws StorageException
-	 *             if an errors occurs or the payload is not found
-	 */
-	private Payload getDataPayload(DigitalObject object)
-			throws StorageException {
-		for (String pid : object.getPayloadIdList()) {
-			if (pid.endsWith(DATA_PAYLOAD_SUFFIX)
-					|| pid.equals(MINT_DATA_PAYLOAD_NAME)) {
-				return object.getPayload(pid);
-			}
-		}
-		throw new StorageException("Data payload not found on storage!");
-	}
-
 	/**
 	 * Test whether the field provided is already a known relationship
 	 * 
@@ -560,7 +576,8 @@ public class RelationshipMapper {
 		DigitalObject object = null;
 		try {
 			object = storage.getObject(oid);
-			getDataPayload(object);
+			CurationMetrics.count(CurationMetrics.Operation.STORAGE);
+			DataPayloads.getDataPayload(object);
 		} catch (StorageException ex) {
 			log.error("Error accessing object '{}' in storage: ", oid, ex);
 			throw new TransactionException(ex);
@@ -590,10 +607,11 @@ public class RelationshipMapper {
 			throws StorageException {
 		try {
 			for (String pid : object.getPayloadIdList()) {
-				if (pid.endsWith(DATA_PAYLOAD_SUFFIX)) {
+				if (pid.endsWith(DataPayloads.DATA_PAYLOAD_SUFFIX)) {
 					InputStream inStream = new ByteArrayInputStream(
 							input.getBytes("UTF-8"));
 					object.updatePayload(pid, inStream);
+					CurationMetrics.count(CurationMetrics.Operation.STORAGE);
 					return;
 				}
 			}
@@ -603,36 +621,188 @@ public class RelationshipMapper {
 		}
 	}
 	
-	private String findOidByIdentifier(String identifier) {
-		String query = "known_ids:\"" + identifier + "\"";
-		SearchRequest request = new SearchRequest(query);
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+	/**
+	 * State for a single walk of the relationship graph. Nodes are keyed by
+	 * OID (local records) or system and identifier (external records) and are
+	 * claimed before being expanded, so no node is visited twice.
+	 */
+	private class Traversal {
 
-		// Now search and parse response
-		SolrResult result = null;
-		try {
-			indexer.search(request, out);
-			InputStream in = new ByteArrayInputStream(out.toByteArray());
-			result = new SolrResult(in);
-		} catch (Exception ex) {
-			log.error("Error searching Solr: ", ex);
-			return null;
+		/** Storage reads shared by every node of this traversal */
+		private final ObjectSnapshotCache.Scope scope;
+
+		/** Keys of every node claimed by this traversal */
+		private final Set<String> visited = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		/** Relationships collected so far */
+		private final Queue<JsonObject> results = new ConcurrentLinkedQueue<JsonObject>();
+
+		/** Number of expansions queued or running */
+		private final AtomicInteger pending = new AtomicInteger();
+
+		/** Released once the last pending expansion finishes */
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		/** Every expansion submitted, cancelled if the caller gives up */
+		private final Queue<Future<?>> futures = new ConcurrentLinkedQueue<Future<?>>();
+
+		/** Set when the caller gives up, queued work then does nothing */
+		private volatile boolean cancelled = false;
+
+		/** The first error raised by any expansion */
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		/** The message operations performed by workers are counted against */
+		private final CurationMetrics.Binding metricsMessage = CurationMetrics
+				.currentBinding();
+
+		public Traversal(ObjectSnapshotCache.Scope scope) {
+			this.scope = scope;
 		}
 
-		// Verify our results
-		if (result.getNumFound() == 0) {
-			log.error("Cannot resolve ID '{}'", identifier);
-			return null;
+		public void add(JsonObject relation) {
+			results.add(relation);
 		}
-		if (result.getNumFound() > 1) {
-			log.error("Found multiple OIDs for ID '{}'", identifier);
-			return null;
+
+		public void addAll(List<JsonObject> relations) {
+			results.addAll(relations);
+		}
+
+		public void expandLocal(final String oid) {
+			if (!visited.add("oid:" + oid)) {
+				log.debug("Relationship graph already contains '{}'", oid);
+				return;
+			}
+			submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					expandObject(Traversal.this, oid);
+					return null;
+				}
+			});
+		}
+
+		public void resolveLocal(List<String> identifiers) {
+			final List<String> claimed = new ArrayList<String>();
+			for (String identifier : identifiers) {
+				if (visited.add("id:" + identifier)) {
+					claimed.add(identifier);
+				}
+			}
+			if (claimed.isEmpty()) {
+				return;
+			}
+			submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Map<String, String> oids = identifierResolver
+							.resolveAll(claimed);
+					if (cancelled) {
+						return null;
+					}
+					for (String identifier : claimed) {
+						String oid = oids.get(identifier);
+						if (oid == null) {
+							log.error("Ignoring unresolvable relationship '{}'",
+									identifier);
+						} else {
+							expandLocal(oid);
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		public void expandExternal(final String sourceSystem,
+				final String relationOid, final String identifier) {
+			String key = relationOid != null ? "oid:" + relationOid : "id:"
+					+ identifier;
+			if (!visited.add(sourceSystem + "|" + key)) {
+				return;
+			}
+			submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					addAll(getRelationsFromExternalSystem(sourceSystem,
+							relationOid, identifier));
+					return null;
+				}
+			});
 		}
 
-		// Return our result
-		SolrDoc doc = result.getResults().get(0);
-		return doc.getFirst("storage_id");
+		private void submit(final Callable<Void> task) {
+			pending.incrementAndGet();
+			try {
+				Future<?> future = traversalExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						CurationMetrics.bind(metricsMessage);
+						try {
+							if (!cancelled) {
+								task.call();
+							}
+						} catch (Throwable ex) {
+							failure.compareAndSet(null, ex);
+						} finally {
+							CurationMetrics.unbind();
+							complete();
+						}
+					}
+				});
+				futures.add(future);
+				// The caller may have given up while this was being queued
+				if (cancelled) {
+					future.cancel(true);
+				}
+			} catch (RejectedExecutionException ex) {
+				failure.compareAndSet(null, ex);
+				complete();
+			}
+		}
+
+		private void complete() {
+			if (pending.decrementAndGet() == 0) {
+				finished.countDown();
+			}
+		}
 
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Stop the traversal. Queued expansions are dropped and running ones
+		 * interrupted, so abandoned work stops touching storage, the index
+		 * and external systems as soon as it can.
+		 */
+		private void cancel() {
+			cancelled = true;
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		public List<JsonObject> await(long timeout) throws IOException {
+			try {
+				if (!finished.await(timeout, TimeUnit.MILLISECONDS)) {
+					cancel();
+					throw new IOException(
+							"Relationship traversal did not complete within "
+									+ timeout + "ms");
+				}
+			} catch (InterruptedException ex) {
+				cancel();
+				Thread.currentThread().interrupt();
+				throw new IOException("Relationship traversal interrupted", ex);
+			}
+			Throwable ex = failure.get();
+			if (ex != null) {
+				throw new IOException("Error traversing relationships", ex);
+			}
+			return new ArrayList<JsonObject>(results);
+		}
 	}
 
 }
@@ -0,0 +1,562 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+
+/**
+ * Single pass form data parser. The flat form package is tokenized once and
+ * each field is written straight into the nested response, without first
+ * building a JSON tree of the input, splitting field names with a regex or
+ * using exceptions to tell numbers from names.
+ *
+ * Results and errors match {@link FormDataParser#parseTree(String)}. Input
+ * this parser does not fully understand (syntax errors, duplicate keys or
+ * anything outside strict JSON) is reported back to the caller, which then
+ * uses the tree parser so the outcome is still identical.
+ */
+final class SinglePassFormDataParser {
+    /** The raw form data */
+    private final String json;
+
+    /** Current read position */
+    private int pos = 0;
+
+    /** The response being built */
+    private final JsonSimple response = new JsonSimple();
+
+    /** The first error found in the form data, reported after the scan */
+    private IOException failure = null;
+
+    /** Set if the package holds a 'data' object, which is never parsed */
+    private boolean hasDataObject = false;
+
+    /** Top level keys seen so far */
+    private final Set<String> keys = new HashSet<String>();
+
+    /** Reused holder for field name segments */
+    private final List<String> segments = new ArrayList<String>();
+
+    private SinglePassFormDataParser(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Parse raw JSON form data.
+     *
+     * @param json The form data to parse
+     * @return JsonSimple The parsed form data, or null if the input must be
+     * handed to the tree parser instead
+     * @throws IOException if the form data is invalid
+     */
+    static JsonSimple parse(String json) throws IOException {
+        SinglePassFormDataParser parser = new SinglePassFormDataParser(json);
+        if (!parser.parseDocument()) {
+            return null;
+        }
+        // Packages holding a 'data' object are not form data at all
+        if (parser.hasDataObject) {
+            return new JsonSimple();
+        }
+        if (parser.failure != null) {
+            throw parser.failure;
+        }
+        return parser.response;
+    }
+
+    /**
+     * Scan the whole document, parsing fields as they are read.
+     *
+     * @return boolean False if the document is not strict JSON, or has
+     * duplicate keys
+     */
+    private boolean parseDocument() {
+        skipWhitespace();
+        if (!consume('{')) {
+            return false;
+        }
+        skipWhitespace();
+        if (consume('}')) {
+            return atEnd();
+        }
+        while (true) {
+            String key = readString();
+            if (key == null || !keys.add(key)) {
+                return false;
+            }
+            skipWhitespace();
+            if (!consume(':')) {
+                return false;
+            }
+            skipWhitespace();
+            if (!parseValue(key)) {
+                return false;
+            }
+            skipWhitespace();
+            if (consume(',')) {
+                skipWhitespace();
+                continue;
+            }
+            if (consume('}')) {
+                return atEnd();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Read the value of a top level key and parse it into the response.
+     */
+    private boolean parseValue(String key) {
+        if (FormDataParser.EXCLUDED_FIELDS.contains(key)) {
+            return skipValue();
+        }
+        if (pos >= json.length()) {
+            return false;
+        }
+        char c = json.charAt(pos);
+        if (c == '"') {
+            String data = readString();
+            if (data == null) {
+                return false;
+            }
+            field(key, data);
+            return true;
+        }
+        if (c == 'n') {
+            // Null is ok
+            if (!consumeLiteral("null")) {
+                return false;
+            }
+            field(key, "");
+            return true;
+        }
+        if (c == '{' && "data".equals(key)) {
+            hasDataObject = true;
+        }
+        if (!skipValue()) {
+            return false;
+        }
+        if (!hasDataObject || !"data".equals(key)) {
+            fail(new IOException("Invalid non-String value found!"));
+        }
+        return true;
+    }
+
+    private void field(String key, String data) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            parseField(key, data);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    private void fail(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+    }
+
+    /**
+     * Parse an individual field into the response object. This mirrors
+     * the tree parser step for step so errors surface in the same order.
+     *
+     * @param field The current field name to parse
+     * @param data The data contained in this current field
+     * @throws IOException if errors occur during the parse
+     */
+    private void parseField(String field, String data) throws IOException {
+        split(field);
+        int length = segments.size();
+        JsonObject lastObject = null;
+        JSONArray lastArray = null;
+
+        for (int i = 0; i < length; i++) {
+            String segment = segments.get(i);
+            int number = segmentNumber(segment);
+
+            if (i == 0) {
+                JsonObject topObject = response.getJsonObject();
+                // Numbers aren't allowed here
+                if (number != -1) {
+                    throw new IOException("Field '" + field + "' starts with"
+                            + " an array... this is illegal form data!");
+                }
+
+                // Really simple fields... just one segment
+                if (i + 1 == length) {
+                    topObject.put(segment, data);
+
+                } else {
+                    int nextNumber = segmentNumber(segments.get(i + 1));
+                    if (nextNumber == -1) {
+                        lastObject = FormDataParser.getObject(topObject,
+                                segment);
+                        lastArray = null;
+                    } else {
+                        lastObject = null;
+                        lastArray = FormDataParser.getArray(topObject,
+                                segment);
+                    }
+                }
+
+            } else if (i == (length - 1)) {
+                lastObject.put(segment, data);
+
+            } else {
+                int nextNumber = segmentNumber(segments.get(i + 1));
+                if (lastArray == null) {
+                    if (number != -1) {
+                        throw new IOException("Field '" + field + "' has an"
+                                + " illegal syntax!");
+                    }
+                    if (nextNumber == -1) {
+                        lastObject = FormDataParser.getObject(lastObject,
+                                segment);
+                        lastArray = null;
+                    } else {
+                        lastArray = FormDataParser.getArray(lastObject,
+                                segment);
+                        lastObject = null;
+                    }
+                } else {
+                    if (number == -1) {
+                        throw new IOException("Field '" + field + "' has an"
+                                + " illegal syntax!");
+                    }
+                    lastObject = FormDataParser.getObject(lastArray, number);
+                    lastArray = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Break a field name on '.' the way String.split("\\.") does, including
+     * dropping trailing empty segments.
+     *
+     * @param field The field name
+     */
+    private void split(String field) {
+        segments.clear();
+        int start = 0;
+        int dot = field.indexOf('.');
+        if (dot == -1) {
+            segments.add(field);
+            return;
+        }
+        while (dot != -1) {
+            segments.add(field.substring(start, dot));
+            start = dot + 1;
+            dot = field.indexOf('.', start);
+        }
+        segments.add(field.substring(start));
+        int last = segments.size() - 1;
+        while (last >= 0 && segments.get(last).length() == 0) {
+            segments.remove(last--);
+        }
+    }
+
+    /**
+     * Classify a field name segment the same way as the tree parser's
+     * Integer.parseInt() wrapper, but without relying on exceptions.
+     *
+     * @param segment The segment to test
+     * @return int The index, or -1 if the segment is not an integer
+     * @throws IOException if the segment is a negative integer
+     */
+    private static int segmentNumber(String segment) throws IOException {
+        int length = segment.length();
+        if (length == 0) {
+            return -1;
+        }
+        int i = 0;
+        boolean negative = false;
+        char first = segment.charAt(0);
+        if (first == '-' || first == '+') {
+            if (length == 1) {
+                return -1;
+            }
+            negative = first == '-';
+            i = 1;
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            char c = segment.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > 2147483648L) {
+                    // Out of int range
+                    return -1;
+                }
+            } else if (c < 128) {
+                return -1;
+            } else {
+                // Non-ASCII digits are rare enough to leave to the JDK
+                return FormDataParser.parseInt(segment);
+            }
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return -1;
+        }
+        if (value < 0) {
+            throw new IOException("Invalid number in field name: '"
+                    + segment + "'");
+        }
+        return (int) value;
+    }
+
+    // ***** Tokenizer *****
+
+    private boolean atEnd() {
+        skipWhitespace();
+        return pos == json.length();
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private boolean consume(char expected) {
+        if (pos < json.length() && json.charAt(pos) == expected) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consumeLiteral(String literal) {
+        if (!json.startsWith(literal, pos)) {
+            return false;
+        }
+        pos += literal.length();
+        return true;
+    }
+
+    /**
+     * Read a string token, decoding any escapes.
+     *
+     * @return String The decoded string, or null if not a valid string
+     */
+    private String readString() {
+        if (!consume('"')) {
+            return null;
+        }
+        int start = pos;
+        // Fast path, no escapes
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return json.substring(start, pos++);
+            }
+            if (c == '\\') {
+                break;
+            }
+            if (c < 0x20) {
+                return null;
+            }
+            pos++;
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(json, start, pos);
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c < 0x20) {
+                return null;
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (pos >= json.length()) {
+                return null;
+            }
+            char escape = json.charAt(pos++);
+            switch (escape) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append(escape);
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        return null;
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(json.charAt(pos++), 16);
+                        if (digit == -1) {
+                            return null;
+                        }
+                        code = code * 16 + digit;
+                    }
+                    builder.append((char) code);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Skip over any value, checking its syntax.
+     *
+     * @return boolean False if the value is not valid strict JSON
+     */
+    private boolean skipValue() {
+        if (pos >= json.length()) {
+            return false;
+        }
+        char c = json.charAt(pos);
+        switch (c) {
+            case '"':
+                return readString() != null;
+            case '{':
+                return skipObject();
+            case '[':
+                return skipArray();
+            case 't':
+                return consumeLiteral("true");
+            case 'f':
+                return consumeLiteral("false");
+            case 'n':
+                return consumeLiteral("null");
+            default:
+                return skipNumber();
+        }
+    }
+
+    private boolean skipObject() {
+        pos++;
+        skipWhitespace();
+        if (consume('}')) {
+            return true;
+        }
+        while (true) {
+            if (readString() == null) {
+                return false;
+            }
+            skipWhitespace();
+            if (!consume(':')) {
+                return false;
+            }
+            skipWhitespace();
+            if (!skipValue()) {
+                return false;
+            }
+            skipWhitespace();
+            if (consume(',')) {
+                skipWhitespace();
+                continue;
+            }
+            return consume('}');
+        }
+    }
+
+    private boolean skipArray() {
+        pos++;
+        skipWhitespace();
+        if (consume(']')) {
+            return true;
+        }
+        while (true) {
+            if (!skipValue()) {
+                return false;
+            }
+            skipWhitespace();
+            if (consume(',')) {
+                skipWhitespace();
+                continue;
+            }
+            return consume(']');
+        }
+    }
+
+    /**
+     * Skip a number in strict JSON syntax. Integers the tree parser cannot
+     * read as a Long are left to it, so the same exception is raised.
+     */
+    private boolean skipNumber() {
+        boolean negative = consume('-');
+        int digits = pos;
+        if (consume('0')) {
+            // No leading zeros
+        } else if (!skipDigits()) {
+            return false;
+        }
+        String integer = json.substring(digits, pos);
+        boolean fraction = consume('.');
+        if (fraction && !skipDigits()) {
+            return false;
+        }
+        boolean exponent = consume('e') || consume('E');
+        if (exponent) {
+            if (!consume('+')) {
+                consume('-');
+            }
+            if (!skipDigits()) {
+                return false;
+            }
+        }
+        return fraction || exponent || fitsLong(integer, negative);
+    }
+
+    /**
+     * @return boolean True if the digits, without leading zeros, are within
+     *         the range of a Long
+     */
+    private static boolean fitsLong(String digits, boolean negative) {
+        String limit = negative ? "9223372036854775808" : "9223372036854775807";
+        if (digits.length() != limit.length()) {
+            return digits.length() < limit.length();
+        }
+        return digits.compareTo(limit) <= 0;
+    }
+
+    private boolean skipDigits() {
+        int start = pos;
+        while (pos < json.length() && json.charAt(pos) >= '0'
+                && json.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos > start;
+    }
+}
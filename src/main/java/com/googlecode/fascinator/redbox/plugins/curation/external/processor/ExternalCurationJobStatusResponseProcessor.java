@@ -1,43 +1,53 @@
 package com.googlecode.fascinator.redbox.plugins.curation.external.processor;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.googlecode.fascinator.common.BasicHttpClient;
-import com.googlecode.fascinator.common.FascinatorHome;
-import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
 import com.googlecode.fascinator.dao.GenericDao;
 import com.googlecode.fascinator.portal.process.Processor;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationJobJournal;
 import com.googlecode.fascinator.redbox.plugins.curation.external.PublicationHandler;
-import com.googlecode.fascinator.redbox.plugins.curation.external.RelationshipMapper;
+import com.googlecode.fascinator.redbox.plugins.curation.external.PublicationResult;
 import com.googlecode.fascinator.redbox.plugins.curation.external.dao.model.CurationJob;
 import com.googlecode.fascinator.spring.ApplicationContextProvider;
 
+/**
+ * Polls the curation manager for the status of in progress curation jobs
+ * and publishes the records of completed ones.
+ *
+ * Every run reads all in progress jobs from the database, as GenericDao
+ * offers no paging and the named queries are defined outside this plugin.
+ * The database cost and the memory held by each run therefore still grow
+ * with the number of in progress jobs. Only the status queries sent to the
+ * curation manager are limited, by the {@link JobStatusPoller}'s schedule
+ * and per pass limit.
+ */
 public class ExternalCurationJobStatusResponseProcessor implements Processor {
 
 	/** Logging **/
-	private Logger log = LoggerFactory.getLogger(RelationshipMapper.class);
+	private Logger log = LoggerFactory
+			.getLogger(ExternalCurationJobStatusResponseProcessor.class);
 
 	/** System configuration */
 	private JsonSimpleConfig systemConfig;
 
 	private PublicationHandler publicationHandler;
 
+	private CurationJobJournal curationJobJournal;
+
 	public ExternalCurationJobStatusResponseProcessor() throws IOException {
 		publicationHandler = (PublicationHandler) ApplicationContextProvider
 				.getApplicationContext().getBean("publicationHandler");
+		curationJobJournal = (CurationJobJournal) ApplicationContextProvider
+				.getApplicationContext().getBean("curationJobJournal");
 		systemConfig = new JsonSimpleConfig();
-
 	}
 
 	@Override
@@ -47,22 +57,48 @@ public class ExternalCurationJobStatusResponseProcessor implements Processor {
 		if ("main".equals(stage)) {
 			GenericDao<CurationJob, Integer> curationJobDao = (GenericDao<CurationJob, Integer>) ApplicationContextProvider
 					.getApplicationContext().getBean("curationJobDao");
-			List<CurationJob> jobs = curationJobDao.query("findInProgressJobs",
-					new HashMap());
-			for (CurationJob curationJob : jobs) {
-				JsonSimple jobStatus = queryJobStatus(curationJob);
+			JobStatusPoller poller = (JobStatusPoller) ApplicationContextProvider
+					.getApplicationContext().getBean("jobStatusPoller");
+			// Every pass reads all in progress jobs, jobs may commit out of
+			// ID order. The poller keeps the schedule of jobs it already
+			// tracks, so only due jobs are queried.
+			poller.reconcile(curationJobDao.query("findInProgressJobs",
+					new HashMap<String, Object>()));
+
+			Map<CurationJob, JsonSimple> jobStatuses = poller.poll();
+			for (CurationJob curationJob : jobStatuses.keySet()) {
+				JsonSimple jobStatus = jobStatuses.get(curationJob);
 
 				String status = jobStatus.getString("FAILED", "jobStatus");
-				writeResponseToStatusResponseCache(
-						jobStatus.getInteger(null, "jobId"), jobStatus);				
+				String jobId = curationJob.getCurationJobId();
 				if ("COMPLETED".equals(status)) {
-					publicationHandler.publishRecords(jobStatus
-							.getArray("jobItems"));
+					// After a failure only the systems that failed are retried
+					Set<String> systems = curationJobJournal
+							.getUnpublishedSystems(jobId);
+					PublicationResult result = publicationHandler
+							.publishRecords(jobStatus.getArray("jobItems"),
+									systems);
+					Set<String> failedSystems = result.getFailedSystems();
+					if (!failedSystems.isEmpty()) {
+						// Left in progress and still tracked, so it is retried
+						// after the next poll and read again on restart
+						curationJobJournal.publicationFailed(jobId,
+								failedSystems);
+						log.error("Job '{}' not completed, publication failed: {}",
+								jobId, result.getFailures());
+						continue;
+					}
 					curationJob.setStatus(status);
 					curationJobDao.create(curationJob);
+					curationJobJournal.jobCompleted(jobId, status, jobStatus);
+					poller.untrack(jobId);
 				} else if ("FAILED".equals(status)) {
 					curationJob.setStatus(status);
 					curationJobDao.create(curationJob);
+					curationJobJournal.jobCompleted(jobId, status, jobStatus);
+					poller.untrack(jobId);
+				} else {
+					curationJobJournal.statusChanged(jobId, status);
 				}
 
 			}
@@ -70,55 +106,4 @@ public class ExternalCurationJobStatusResponseProcessor implements Processor {
 		return true;
 	}
 
-	private void writeResponseToStatusResponseCache(Integer jobId,
-			JsonSimple jobStatus) throws IOException {
-		File curationStatusRespones = new File(FascinatorHome.getPath()
-				+ "/curation-status-responses");
-		if (curationStatusRespones.exists()) {
-			FileUtils.forceMkdir(curationStatusRespones);
-		}
-
-		FileUtils.writeStringToFile(new File(curationStatusRespones.getPath()
-				+ "/" + jobId + ".json"), jobStatus.toString(true));
-
-	}
-
-	private JsonSimple queryJobStatus(CurationJob curationJob)
-			throws IOException {
-		List<JsonObject> relations = new ArrayList<JsonObject>();
-		GetMethod get;
-		try {
-			String url = systemConfig.getString(null, "curation",
-					"curation-manager-url");
-			BasicHttpClient client = new BasicHttpClient(url + "/job/"
-					+ curationJob.getCurationJobId());
-			get = new GetMethod(url+ "/job/"
-					+ curationJob.getCurationJobId());
-			client.executeMethod(get);
-			int status = get.getStatusCode();
-			if (status != 200) {
-				String text = get.getStatusText();
-				log.error(String
-						.format("Error accessing Curation Manager, status code '%d' returned with message: %s",
-								status, text));
-				return null;
-			}
-
-		} catch (IOException ex) {
-			log.error("Error during search: ", ex);
-			return null;
-		}
-
-		// Return our results body
-		String response = null;
-		try {
-			response = get.getResponseBodyAsString();
-		} catch (IOException ex) {
-			log.error("Error accessing response body: ", ex);
-			return null;
-		}
-
-		return new JsonSimple(response);
-	}
-
-}
+}
\ No newline at end of file
@@ -0,0 +1,277 @@
+package com.googlecode.fascinator.redbox.plugins.curation.external.processor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationHttpTransport;
+import com.googlecode.fascinator.redbox.plugins.curation.external.dao.model.CurationJob;
+
+/**
+ * Tracks in progress curation jobs and queries their status from the
+ * curation manager. The tracked jobs follow the in progress jobs read from
+ * the database, so jobs finished elsewhere are dropped. Due jobs are queried concurrently, and every poll that
+ * finds a job unfinished doubles the delay before that job is polled again,
+ * up to a configured maximum. Jobs stay tracked, and keep being polled on
+ * the same schedule, until the caller has finished with them and untracks
+ * them, so a completed job whose records could not be published is retried.
+ *
+ * A single poller is shared by every run of the status processor, so job
+ * schedules survive between runs, and its workers stop with the application
+ * context.
+ *
+ * Configured under curation/job-status-poller with 'threads',
+ * 'jobsPerPass', 'initialDelay' and 'maxDelay' (milliseconds).
+ */
+@Component
+public class JobStatusPoller implements DisposableBean {
+
+	/** Default number of concurrent status queries */
+	private static final int DEFAULT_THREADS = 8;
+
+	/** Default maximum number of jobs queried in one pass */
+	private static final int DEFAULT_JOBS_PER_PASS = 500;
+
+	/** Default delay after the first unfinished poll, in milliseconds */
+	private static final int DEFAULT_INITIAL_DELAY = 60000;
+
+	/** Default upper bound on the delay between polls, in milliseconds */
+	private static final int DEFAULT_MAX_DELAY = 3600000;
+
+	/** Logging **/
+	private Logger log = LoggerFactory.getLogger(JobStatusPoller.class);
+
+	/** HTTP access to the curation manager */
+	@Autowired
+	private CurationHttpTransport httpTransport;
+
+	/** Curation manager base URL */
+	private String curationManagerUrl;
+
+	/** Maximum number of jobs queried in one pass */
+	private int jobsPerPass;
+
+	/** Delay after the first unfinished poll */
+	private long initialDelay;
+
+	/** Upper bound on the delay between polls */
+	private long maxDelay;
+
+	/** Workers querying job status */
+	private ExecutorService executor;
+
+	/** Tracked jobs, keyed by curation manager job ID */
+	private final Map<String, TrackedJob> jobs = new LinkedHashMap<String, TrackedJob>();
+
+	public JobStatusPoller() throws IOException {
+		JsonSimpleConfig systemConfig = new JsonSimpleConfig();
+		init(null,
+				systemConfig.getString(null, "curation", "curation-manager-url"),
+				systemConfig.getInteger(DEFAULT_THREADS, "curation",
+						"job-status-poller", "threads"),
+				systemConfig.getInteger(DEFAULT_JOBS_PER_PASS, "curation",
+						"job-status-poller", "jobsPerPass"),
+				systemConfig.getInteger(DEFAULT_INITIAL_DELAY, "curation",
+						"job-status-poller", "initialDelay"),
+				systemConfig.getInteger(DEFAULT_MAX_DELAY, "curation",
+						"job-status-poller", "maxDelay"));
+	}
+
+	public JobStatusPoller(CurationHttpTransport httpTransport,
+			String curationManagerUrl, int threads, int jobsPerPass,
+			long initialDelay, long maxDelay) {
+		init(httpTransport, curationManagerUrl, threads, jobsPerPass,
+				initialDelay, maxDelay);
+	}
+
+	private void init(CurationHttpTransport httpTransport,
+			String curationManagerUrl, int threads, int jobsPerPass,
+			long initialDelay, long maxDelay) {
+		this.httpTransport = httpTransport;
+		this.curationManagerUrl = curationManagerUrl;
+		this.jobsPerPass = jobsPerPass;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"curation-job-status-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Track exactly the given jobs, as just read from the database. New jobs
+	 * are polled straight away, jobs already tracked keep their schedule but
+	 * take the fresh job instance, and tracked jobs that are missing, eg.
+	 * finished by another node or an administrator, are dropped.
+	 *
+	 * @param curationJobs
+	 *            Every in progress job
+	 */
+	public synchronized void reconcile(Collection<CurationJob> curationJobs) {
+		Map<String, TrackedJob> current = new LinkedHashMap<String, TrackedJob>();
+		for (CurationJob curationJob : curationJobs) {
+			String jobId = curationJob.getCurationJobId();
+			if (jobId == null) {
+				continue;
+			}
+			TrackedJob job = jobs.get(jobId);
+			if (job == null) {
+				job = new TrackedJob(curationJob);
+			} else {
+				job.curationJob = curationJob;
+			}
+			current.put(jobId, job);
+		}
+		jobs.clear();
+		jobs.putAll(current);
+	}
+
+	/**
+	 * Stop tracking a job, once it is finished with.
+	 *
+	 * @param jobId
+	 *            The curation manager job ID
+	 */
+	public synchronized void untrack(String jobId) {
+		jobs.remove(jobId);
+	}
+
+	/**
+	 * @return int The number of jobs currently tracked
+	 */
+	public synchronized int getTrackedJobCount() {
+		return jobs.size();
+	}
+
+	/**
+	 * Query the status of every job that is due, up to the per pass limit.
+	 * Every queried job is rescheduled with a longer delay, whatever its
+	 * status, until it is untracked.
+	 *
+	 * @return Map<CurationJob, JsonSimple> Status responses for each job that
+	 *         was successfully queried
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for responses
+	 */
+	public Map<CurationJob, JsonSimple> poll() throws InterruptedException {
+		List<TrackedJob> due = new ArrayList<TrackedJob>();
+		long now = currentTimeMillis();
+		synchronized (this) {
+			for (TrackedJob job : jobs.values()) {
+				if (due.size() >= jobsPerPass) {
+					break;
+				}
+				if (job.nextPoll <= now) {
+					due.add(job);
+				}
+			}
+		}
+
+		List<Future<JsonSimple>> futures = new ArrayList<Future<JsonSimple>>();
+		for (TrackedJob job : due) {
+			final String jobId = job.curationJob.getCurationJobId();
+			futures.add(executor.submit(new Callable<JsonSimple>() {
+				@Override
+				public JsonSimple call() {
+					return queryJobStatus(jobId);
+				}
+			}));
+		}
+
+		Map<CurationJob, JsonSimple> responses = new LinkedHashMap<CurationJob, JsonSimple>();
+		for (int i = 0; i < due.size(); i++) {
+			TrackedJob job = due.get(i);
+			JsonSimple jobStatus = null;
+			try {
+				jobStatus = futures.get(i).get();
+			} catch (ExecutionException ex) {
+				log.error("Error querying status of job '{}': ",
+						job.curationJob.getCurationJobId(), ex.getCause());
+			}
+			if (jobStatus != null) {
+				responses.put(job.curationJob, jobStatus);
+			}
+			synchronized (this) {
+				job.backOff(currentTimeMillis());
+			}
+		}
+		return responses;
+	}
+
+	/**
+	 * Stop the query workers.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void destroy() {
+		shutdown();
+	}
+
+	/**
+	 * @return long The time polling schedules are measured against
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private JsonSimple queryJobStatus(String curationJobId) {
+		try {
+			return httpTransport.getJson("curation-manager/job-status",
+					curationManagerUrl + "/job/" + curationJobId);
+		} catch (IOException ex) {
+			log.error("Error accessing Curation Manager: ", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Polling schedule of a single job.
+	 */
+	private class TrackedJob {
+		private CurationJob curationJob;
+		private int attempts = 0;
+		private long nextPoll = 0;
+
+		private TrackedJob(CurationJob curationJob) {
+			this.curationJob = curationJob;
+		}
+
+		private void backOff(long now) {
+			long delay = initialDelay << Math.min(attempts, 30);
+			if (delay <= 0 || delay > maxDelay) {
+				delay = maxDelay;
+			}
+			attempts++;
+			nextPoll = now + delay;
+		}
+	}
+}
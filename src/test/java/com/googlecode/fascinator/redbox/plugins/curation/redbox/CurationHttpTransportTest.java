@@ -0,0 +1,104 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationHttpTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the HTTP transport against a stub server.
+ */
+public class CurationHttpTransportTest {
+    private HttpServer server;
+    private CurationHttpTransport transport;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if ("/created".equals(path)) {
+                    exchange.sendResponseHeaders(201, -1);
+                } else if ("/empty".equals(path)) {
+                    exchange.sendResponseHeaders(204, -1);
+                } else if ("/missing".equals(path)) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if ("/text".equals(path)) {
+                    byte[] body = "Accepted".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(202, body.length);
+                    exchange.getResponseBody().write(body);
+                } else {
+                    exchange.getResponseHeaders().add("Content-Encoding",
+                            "gzip");
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream out = new GZIPOutputStream(
+                            exchange.getResponseBody());
+                    out.write("{\"records\":[{\"oid\":\"é\"}]}"
+                            .getBytes("UTF-8"));
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort();
+        transport = new CurationHttpTransport(4, 4, 5000, 5000, true);
+    }
+
+    @After
+    public void tearDown() {
+        transport.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void getJsonTest() throws Exception {
+        JsonSimple json = transport.getJson("json", url + "/json");
+        Assert.assertEquals("é", new JsonSimple((JsonObject) json
+                .getArray("records").get(0)).getString(null, "oid"));
+
+        try {
+            transport.getJson("text", url + "/text");
+            Assert.fail("A body that is not JSON should fail");
+        } catch (IOException ex) {
+            // expected
+        }
+        Assert.assertEquals(1, transport.getStatistics().get("text")
+                .getFailures());
+    }
+
+    @Test
+    public void postTest() throws Exception {
+        JsonObject body = new JsonObject();
+        body.put("records", "[]");
+        // Any 2xx is accepted and the body, if any, is not read
+        transport.post("publish", url + "/created", body);
+        transport.post("publish", url + "/empty", body);
+        transport.post("publish", url + "/text", body);
+        try {
+            transport.post("publish", url + "/missing", body);
+            Assert.fail("A 404 should fail");
+        } catch (IOException ex) {
+            // expected
+        }
+        Assert.assertEquals(4, transport.getStatistics().get("publish")
+                .getCount());
+        Assert.assertEquals(1, transport.getStatistics().get("publish")
+                .getFailures());
+    }
+}
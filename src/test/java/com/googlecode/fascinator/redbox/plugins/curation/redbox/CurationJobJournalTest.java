@@ -0,0 +1,160 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationJobJournal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the job journal survives restarts, crashes and compaction.
+ */
+public class CurationJobJournalTest {
+    private File dir;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("journal", "test");
+        dir.delete();
+        dir.mkdirs();
+        journalFile = new File(dir, "jobs.journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void replayTest() throws Exception {
+        CurationJobJournal journal = new CurationJobJournal(journalFile, 0);
+        journal.jobCreated("1");
+        journal.jobCreated("2");
+        journal.statusChanged("2", "CURATING");
+        journal.jobCompleted("1", "COMPLETED", new JsonSimple());
+        journal.destroy();
+
+        // Simulate a crash part way through an append
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write("{\"event\":\"created\",\"jobI".getBytes("UTF-8"));
+        out.close();
+
+        journal = new CurationJobJournal(journalFile, 0);
+        Assert.assertEquals(1, journal.getInProgressJobCount());
+        Assert.assertNull(journal.getStatus("1"));
+        Assert.assertEquals("CURATING", journal.getStatus("2"));
+
+        // Appends after recovery start on a clean line
+        journal.jobCreated("3");
+        journal.destroy();
+        journal = new CurationJobJournal(journalFile, 0);
+        Assert.assertEquals(2, journal.getInProgressJobCount());
+        journal.destroy();
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        CurationJobJournal journal = new CurationJobJournal(journalFile, 10);
+        for (int i = 0; i < 20; i++) {
+            journal.jobCreated(String.valueOf(i));
+            journal.jobCompleted(String.valueOf(i), "COMPLETED", null);
+        }
+        journal.jobCreated("live");
+        journal.statusChanged("live", "CURATING");
+        journal.destroy();
+
+        List<?> lines = FileUtils.readLines(journalFile, "UTF-8");
+        Assert.assertTrue(lines.size() < 12);
+        journal = new CurationJobJournal(journalFile, 10);
+        Assert.assertEquals(1, journal.getInProgressJobCount());
+        Assert.assertEquals("CURATING", journal.getStatus("live"));
+        journal.destroy();
+    }
+
+    @Test
+    public void responseRetainedTest() throws Exception {
+        CurationJobJournal journal = new CurationJobJournal(journalFile, 5);
+        for (int i = 0; i < 10; i++) {
+            journal.jobCreated(String.valueOf(i));
+            journal.jobCompleted(String.valueOf(i), "COMPLETED",
+                    new JsonSimple("{\"jobId\":" + i + "}"));
+        }
+        journal.destroy();
+
+        // Final responses outlive compaction of the journal
+        journal = new CurationJobJournal(journalFile, 5);
+        Assert.assertEquals(0, journal.getInProgressJobCount());
+        Assert.assertEquals(Integer.valueOf(3),
+                journal.getResponse("3").getInteger(null, "jobId"));
+        Assert.assertNull(journal.getResponse("missing"));
+        journal.destroy();
+    }
+
+    @Test
+    public void publicationFailedTest() throws Exception {
+        CurationJobJournal journal = new CurationJobJournal(journalFile, 0);
+        journal.jobCreated("1");
+        Assert.assertNull(journal.getUnpublishedSystems("1"));
+        journal.publicationFailed("1", Arrays.asList("mint", "mina"));
+        journal.publicationFailed("1", Arrays.asList("mina"));
+        journal.destroy();
+
+        // The last failure is kept across restarts and compaction
+        journal = new CurationJobJournal(journalFile, 0);
+        Assert.assertEquals(CurationJobJournal.STATUS_PUBLICATION_FAILED,
+                journal.getStatus("1"));
+        Assert.assertEquals(Collections.singleton("mina"),
+                journal.getUnpublishedSystems("1"));
+        journal.compact();
+        journal.destroy();
+        journal = new CurationJobJournal(journalFile, 0);
+        Assert.assertEquals(Collections.singleton("mina"),
+                journal.getUnpublishedSystems("1"));
+
+        // Once published the job is finished
+        journal.jobCompleted("1", "COMPLETED", null);
+        Assert.assertNull(journal.getUnpublishedSystems("1"));
+        Assert.assertEquals(0, journal.getInProgressJobCount());
+        journal.destroy();
+    }
+
+    @Test
+    public void singleWriterTest() throws Exception {
+        CurationJobJournal journal = new CurationJobJournal(journalFile, 0);
+        try {
+            new CurationJobJournal(journalFile, 0);
+            Assert.fail("A second writer should not open the journal");
+        } catch (IOException ex) {
+            // expected
+        }
+        journal.jobCreated("1");
+        journal.destroy();
+
+        // Available again once closed
+        journal = new CurationJobJournal(journalFile, 0);
+        Assert.assertEquals(1, journal.getInProgressJobCount());
+        journal.destroy();
+    }
+
+    @Test
+    public void importTest() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "inProgressJobs.json"),
+                "{\"inProgressJobs\":[\"7\",\"8\"]}", "UTF-8");
+        CurationJobJournal journal = new CurationJobJournal(journalFile, 0);
+        Assert.assertEquals(2, journal.getInProgressJobCount());
+        Assert.assertEquals(CurationJobJournal.STATUS_IN_PROGRESS,
+                journal.getStatus("8"));
+        journal.destroy();
+    }
+}
@@ -0,0 +1,262 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationHttpTransport;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationMetrics;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationMetrics.Operation;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationMetrics.Stage;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationMetrics.TaskType;
+import com.googlecode.fascinator.redbox.plugins.curation.external.IdentifierResolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Records messages into the curation metrics and reads them back.
+ */
+public class CurationMetricsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File snapshotFile;
+    private CurationMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotFile = new File(folder.getRoot(), "metrics/metrics.json");
+        metrics = new CurationMetrics(snapshotFile, 0);
+    }
+
+    @After
+    public void tearDown() {
+        metrics.destroy();
+    }
+
+    @Test
+    public void histogramTest() {
+        CurationMetrics.Histogram histogram = new CurationMetrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500500, histogram.getMean(), 0.001);
+        // Within one bucket (12.5%) of the real value
+        Assert.assertTrue(histogram.getPercentile(50) >= 500000);
+        Assert.assertTrue(histogram.getPercentile(50) <= 562500);
+        Assert.assertTrue(histogram.getPercentile(99) >= 990000);
+        Assert.assertEquals(1000000, histogram.getPercentile(100));
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void messageTest() throws Exception {
+        Assert.assertEquals(TaskType.CURATION, CurationMetrics
+                .getTaskType(new JsonSimple("{\"task\":\"curation-query\"}")));
+        Assert.assertEquals(TaskType.HARVEST, CurationMetrics
+                .getTaskType(new JsonSimple("{\"harvester\":{}}")));
+
+        // Outside a message nothing is counted
+        CurationMetrics.count(Operation.HTTP);
+
+        final CurationMetrics.Message message = metrics
+                .beginMessage(TaskType.CURATION);
+        long start = System.nanoTime();
+        CurationMetrics.count(Operation.STORAGE);
+        CurationMetrics.count(Operation.STORAGE);
+        start = metrics.recordStage(message, Stage.RELATIONSHIP_MAPPING, start);
+
+        // Workers count against the message they are bound to
+        final CurationMetrics.Binding binding = CurationMetrics
+                .currentBinding();
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                CurationMetrics.bind(binding);
+                CurationMetrics.count(Operation.INDEX);
+                CurationMetrics.unbind();
+                CurationMetrics.count(Operation.INDEX);
+            }
+        };
+        worker.start();
+        worker.join();
+        CurationMetrics.count(Operation.HTTP);
+        metrics.recordStage(message, Stage.CURATION_MANAGER_POST, start);
+        Assert.assertEquals(1, message.getCount(Operation.INDEX));
+        metrics.endMessage(message);
+        CurationMetrics.count(Operation.HTTP);
+
+        Assert.assertEquals(1, metrics.getMessageCount());
+        Map<String, Long> totals = metrics.getOperationTotals();
+        Assert.assertEquals(Long.valueOf(2), totals.get("storage"));
+        Assert.assertEquals(Long.valueOf(1), totals.get("index"));
+        Assert.assertEquals(Long.valueOf(1), totals.get("http"));
+        Assert.assertTrue(metrics.getLatencies().containsKey(
+                "curation/relationship-mapping"));
+        Assert.assertFalse(metrics.getLatencies().containsKey(
+                "curation/message-building"));
+
+        // JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CurationMetrics.OBJECT_NAME);
+        Assert.assertEquals(1L, server.getAttribute(name, "MessageCount"));
+        Assert.assertEquals(-1, server.getAttribute(name, "InProgressJobCount"));
+
+        // Snapshot file
+        metrics.writeSnapshot();
+        JsonSimple snapshot = new JsonSimple(FileUtils.readFileToString(
+                snapshotFile, "UTF-8"));
+        Assert.assertEquals(1, (int) snapshot.getInteger(0, "taskTypes",
+                "curation", "message", "count"));
+        Assert.assertEquals(2, (int) snapshot.getInteger(0, "taskTypes",
+                "curation", "operationsPerMessage", "storage", "max"));
+        Assert.assertNull(snapshot.getObject("taskTypes", "harvest"));
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getMessageCount());
+    }
+
+    @Test
+    public void lateWorkerTest() throws Exception {
+        metrics.beginMessage(TaskType.CURATION);
+        final CurationMetrics.Binding binding = CurationMetrics
+                .currentBinding();
+        final CountDownLatch ended = new CountDownLatch(1);
+        final CountDownLatch counted = new CountDownLatch(1);
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                CurationMetrics.bind(binding);
+                try {
+                    ended.await();
+                    CurationMetrics.count(Operation.INDEX);
+                } catch (InterruptedException ex) {
+                    // ignored
+                } finally {
+                    CurationMetrics.unbind();
+                    counted.countDown();
+                }
+            }
+        };
+        worker.start();
+        metrics.endMessage(metrics.beginMessage(TaskType.CURATION));
+
+        // A worker outliving its message cannot count against the next one,
+        // although the same state is reused
+        CurationMetrics.Message next = metrics.beginMessage(TaskType.WORKFLOW);
+        ended.countDown();
+        counted.await();
+        worker.join();
+        Assert.assertEquals(0, next.getCount(Operation.INDEX));
+        metrics.endMessage(next);
+        Assert.assertEquals(Long.valueOf(0),
+                metrics.getOperationTotals().get("index"));
+    }
+
+    @Test
+    public void statisticsTest() throws Exception {
+        MemoryIndexer indexer = new MemoryIndexer(true);
+        indexer.add("oid1", "id1");
+        IdentifierResolver resolver = new IdentifierResolver(
+                new JsonSimpleConfig("{}"));
+        MemoryStorage.inject(resolver, "indexer", indexer);
+        resolver.resolve("id1");
+        resolver.resolve("id1");
+        CurationHttpTransport transport = new CurationHttpTransport(1, 1,
+                1000, 1000, true);
+        try {
+            transport.getJson("curation-manager/job-status",
+                    "http://localhost:1/job/1");
+        } catch (IOException ex) {
+            // expected, nothing listens there
+        }
+
+        Assert.assertTrue(metrics.getIdentifierResolverStatistics().isEmpty());
+        MemoryStorage.inject(metrics, "identifierResolver", resolver);
+        MemoryStorage.inject(metrics, "httpTransport", transport);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(CurationMetrics.OBJECT_NAME);
+            Map<?, ?> statistics = (Map<?, ?>) server.getAttribute(name,
+                    "IdentifierResolverStatistics");
+            Assert.assertEquals(5, statistics.size());
+            Map<String, Long> resolverStatistics = metrics
+                    .getIdentifierResolverStatistics();
+            Assert.assertEquals(Long.valueOf(1),
+                    resolverStatistics.get("cacheHits"));
+            Assert.assertEquals(Long.valueOf(1),
+                    resolverStatistics.get("cacheMisses"));
+            Assert.assertEquals(Long.valueOf(1),
+                    resolverStatistics.get("queries"));
+            Assert.assertEquals(Long.valueOf(1),
+                    resolverStatistics.get("cacheSize"));
+            Assert.assertTrue(metrics.getHttpStatistics()
+                    .get("curation-manager/job-status")
+                    .startsWith("count=1 failures=1"));
+            Assert.assertNotNull(server.getAttribute(name, "HttpStatistics"));
+        } finally {
+            transport.destroy();
+        }
+    }
+
+    @Test
+    public void registrationTest() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CurationMetrics.OBJECT_NAME);
+
+        // A newer instance takes over the name, the older one leaves it be
+        CurationMetrics newer = new CurationMetrics(snapshotFile, 0);
+        try {
+            metrics.destroy();
+            Assert.assertTrue(server.isRegistered(name));
+        } finally {
+            newer.destroy();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void allocationFreeTest() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory
+                .getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+        record(1000);
+        long before = sunThreads.getThreadAllocatedBytes(thread);
+        record(10000);
+        long allocated = sunThreads.getThreadAllocatedBytes(thread) - before;
+        Assert.assertTrue("Allocated " + allocated + " bytes",
+                allocated < 10000);
+    }
+
+    private void record(int messages) {
+        for (int i = 0; i < messages; i++) {
+            CurationMetrics.Message message = metrics
+                    .beginMessage(TaskType.WORKFLOW);
+            long start = System.nanoTime();
+            CurationMetrics.count(Operation.STORAGE);
+            CurationMetrics.count(Operation.HTTP);
+            metrics.recordStage(message, Stage.MESSAGE_BUILDING, start);
+            metrics.endMessage(message);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.redbox.plugins.curation.external.ExpiringLruCache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks eviction, expiry and hit counting of the shared lookup cache.
+ */
+public class ExpiringLruCacheTest {
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ExpiringLruCache<String, String> cache =
+                new ExpiringLruCache<String, String>(2, 0);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // Touch 'a' so 'b' is the eldest
+        Assert.assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("1", cache.get("a"));
+        Assert.assertEquals("3", cache.get("c"));
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void expiresOldEntries() throws Exception {
+        ExpiringLruCache<String, String> cache =
+                new ExpiringLruCache<String, String>(10, 20);
+        cache.put("a", "1");
+        Thread.sleep(50);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+}
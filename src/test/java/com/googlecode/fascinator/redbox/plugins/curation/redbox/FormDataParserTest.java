@@ -21,7 +21,9 @@ package com.googlecode.fascinator.redbox.plugins.curation.redbox;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.redbox.plugins.curation.external.FormDataParser;
 
+import java.io.IOException;
 import java.io.InputStream;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -75,4 +77,70 @@ public class FormDataParserTest {
                 formData.getString(null,
                     "dc:creator", "foaf:Person", 2, "dc:identifier"));
     }
+
+    @Test
+    public void matchesTreeParserTest() throws Exception {
+        InputStream in = getClass().getResourceAsStream("/test.tfpackage");
+        String tfpackage = IOUtils.toString(in, "UTF-8");
+        in.close();
+        assertSameResult(tfpackage);
+
+        // Simple and nested fields, nulls and escapes
+        assertSameResult("{}");
+        assertSameResult(" { \"a\" : \"1\" , \"b.c\":null } ");
+        assertSameResult("{\"a.b.1.c\":\"x\",\"a.b.2.c\":\"y\","
+                + "\"a.b.1.d\":\"z\"}");
+        assertSameResult("{\"t\":\"\\u00e9\\n\\\"\\/\\\\\"}");
+        assertSameResult("{\"a.\":\"1\",\"b..\":\"2\",\".c\":\"3\","
+                + "\"\":\"4\",\"...\":\"5\"}");
+        assertSameResult("{\"a.+1.b\":\"1\",\"c.01.d\":\"2\","
+                + "\"e.99999999999.f\":\"3\",\"g.-0.h\":\"4\"}");
+
+        // Excluded and 'data' nodes
+        assertSameResult("{\"metaList\":[1,{\"x\":true}],\"a\":\"1\","
+                + "\"responses\":{\"y\":-1.5e3}}");
+        assertSameResult("{\"a\":5,\"data\":{\"b\":\"1\"}}");
+        assertSameResult("{\"data\":[\"b\"]}");
+
+        // Errors
+        assertSameResult("{\"a\":5}");
+        assertSameResult("{\"a\":\"1\",\"b\":[]}");
+        assertSameResult("{\"1.a\":\"1\"}");
+        assertSameResult("{\"a.-1.b\":\"1\"}");
+        assertSameResult("{\"a.0.b\":\"1\"}");
+        assertSameResult("{\"a.1\":\"1\"}");
+        assertSameResult("{\"a\":\"1\",\"a.b\":\"2\"}");
+        assertSameResult("{\"a.b\":\"1\",\"a.1.b\":\"2\"}");
+        assertSameResult("{\"a.b\":\"1\",\"c.-2\":\"2\"}");
+        // Numbers outside the range of a Long, wherever they appear
+        assertSameResult("{\"a\":99999999999999999999}");
+        assertSameResult("{\"a\":-9223372036854775809}");
+        assertSameResult("{\"a\":9223372036854775807}");
+        assertSameResult("{\"metaList\":[9223372036854775808]}");
+        assertSameResult("{\"data\":{\"b\":-9223372036854775808}}");
+        assertSameResult("{\"responses\":{\"b\":99999999999999999999.5}}");
+
+        // Input only the tree parser understands, or nobody does
+        assertSameResult("{\"a\":\"1\",\"a\":\"2\"}");
+        assertSameResult("[{\"a\":\"1\"}]");
+        assertSameResult("{\"a\":\"1\"");
+        assertSameResult("{\"a\":\"1\"} x");
+        assertSameResult("");
+    }
+
+    private void assertSameResult(String json) {
+        Assert.assertEquals(json, parse(json, false), parse(json, true));
+    }
+
+    private String parse(String json, boolean tree) {
+        try {
+            JsonSimple result = tree ? FormDataParser.parseTree(json)
+                    : FormDataParser.parse(json);
+            return result.toString();
+        } catch (IOException ex) {
+            return "IOException: " + ex.getMessage();
+        } catch (RuntimeException ex) {
+            return ex.getClass().getName() + ": " + ex.getMessage();
+        }
+    }
 }
@@ -0,0 +1,113 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationJobMessage;
+import com.googlecode.fascinator.redbox.plugins.curation.external.IdentifierMappingTemplate;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.text.StrSubstitutor;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks compiled identifier mappings against StrSubstitutor over the
+ * flattened metadata.
+ */
+public class IdentifierMappingTemplateTest {
+    private static final String[] TEMPLATES = {
+        "plain text",
+        "${dc:title}",
+        "${dc:creator.foaf:Person.1.dc:identifier} (${dc:title})",
+        "${nested.inner.value}/${nested.count}/${nested.flag}",
+        "${missing} and ${dc:title",
+        "escaped $${dc:title} but not ${dc:title}",
+        "recursive ${pointer}",
+        "money ${price}${dc:title}",
+        "${list}"
+    };
+
+    @Test
+    public void matchesStrSubstitutorTest() throws Exception {
+        JsonObject metadata = new JsonSimple("{"
+                + "\"dc:title\":\"A title\","
+                + "\"dc:creator.foaf:Person.1.dc:identifier\":\"person/1\","
+                + "\"nested\":{\"inner\":{\"value\":\"deep\"},\"count\":3,"
+                + "\"flag\":true},"
+                + "\"pointer\":\"points at ${dc:title}\","
+                + "\"price\":\"US$\","
+                + "\"list\":[\"a\",\"b\"],"
+                + "\"empty\":null}").getJsonObject();
+
+        StringBuilder general = new StringBuilder();
+        StringBuilder handle = new StringBuilder();
+        for (int i = 0; i < TEMPLATES.length; i++) {
+            String template = JsonObject.escape(TEMPLATES[i]);
+            general.append(i == 0 ? "" : ",").append("\"g" + i + "\":\"")
+                    .append(template).append('"');
+            handle.append(i == 0 ? "" : ",").append("\"h" + i + "\":\"")
+                    .append(template).append('"');
+        }
+        JsonSimple config = new JsonSimple("{\"curation\":{"
+                + "\"requiredIdentifiers\":[\"handle\",\"nla\"],"
+                + "\"identifierDataMapping\":{\"general\":{" + general
+                + "},\"handle\":{" + handle + "}}}}");
+
+        IdentifierMappingTemplate mapping = IdentifierMappingTemplate
+                .compile(config);
+        Assert.assertTrue(mapping.getPaths().contains("nested.inner.value"));
+        Assert.assertTrue(mapping.getPaths().contains("price"));
+
+        JsonObject record = mapping.createRecord("oid1", metadata);
+        StrSubstitutor substitutor = new StrSubstitutor(flatten(metadata));
+        Assert.assertEquals("oid1", record.get("oid"));
+        for (int i = 0; i < TEMPLATES.length; i++) {
+            String expected = substitutor.replace(TEMPLATES[i]);
+            Assert.assertEquals(expected, record.get("g" + i));
+            Assert.assertEquals(expected, new JsonSimple(record).getString(
+                    null, "required_identifiers", 0, "metadata", "h" + i));
+        }
+        Assert.assertEquals("nla", new JsonSimple(record).getString(null,
+                "required_identifiers", 1, "identifier_type"));
+        Assert.assertNull(new JsonSimple(record).getObject(
+                "required_identifiers", 1, "metadata"));
+
+        // Records are only created as the message is written
+        CurationJobMessage message = new CurationJobMessage();
+        message.addRecord("oid1", metadata, mapping);
+        JsonObject relationship = new JsonObject();
+        relationship.put("identifier", "external");
+        message.addRecord(relationship);
+        Assert.assertEquals("[" + record.toJSONString() + ","
+                + relationship.toJSONString() + "]", message.toString());
+
+        // Mapping is timed when streamed, not when logged
+        Assert.assertEquals(0, message.getMappingTime());
+        StringWriter writer = new StringWriter();
+        message.writeJSONString(writer);
+        Assert.assertEquals(message.toString(), writer.toString());
+        Assert.assertTrue(message.getMappingTime() > 0);
+    }
+
+    private Map<String, String> flatten(JsonObject metadata) {
+        Map<String, String> values = new HashMap<String, String>();
+        flatten(metadata, null, values);
+        return values;
+    }
+
+    private void flatten(JsonObject object, String parent,
+            Map<String, String> values) {
+        for (Object key : object.keySet()) {
+            String path = parent == null ? (String) key : parent + "." + key;
+            Object value = object.get(key);
+            if (value instanceof JsonObject) {
+                flatten((JsonObject) value, path, values);
+            } else if (value != null) {
+                values.put(path, value.toString());
+            }
+        }
+    }
+}
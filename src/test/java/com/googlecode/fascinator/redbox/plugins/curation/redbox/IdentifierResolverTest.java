@@ -0,0 +1,155 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.redbox.plugins.curation.external.IdentifierResolver;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks identifiers are resolved in batches, including when a batch matches
+ * more documents than one page holds.
+ */
+public class IdentifierResolverTest {
+
+    private IdentifierResolver createResolver(MemoryIndexer indexer)
+            throws Exception {
+        return createResolver(indexer, "\"batchSize\":2");
+    }
+
+    private IdentifierResolver createResolver(MemoryIndexer indexer,
+            String settings) throws Exception {
+        IdentifierResolver resolver = new IdentifierResolver(
+                new JsonSimpleConfig("{\"curation\":{\"identifier-resolver\":"
+                        + "{" + settings + "}}}"));
+        MemoryStorage.inject(resolver, "indexer", indexer);
+        return resolver;
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        MemoryIndexer indexer = new MemoryIndexer(true);
+        indexer.add("oid1", "id1", "alias1");
+        indexer.add("oid2", "id2");
+        indexer.add("oid3", "id3");
+        indexer.add("oid4", "shared");
+        indexer.add("oid5", "shared");
+        IdentifierResolver resolver = createResolver(indexer);
+
+        Map<String, String> oids = resolver.resolveAll(Arrays.asList("id1",
+                "id2", "id1", "id3", "shared", "missing"));
+        // Five distinct identifiers in batches of two
+        Assert.assertEquals(3, resolver.getQueryCount());
+        Assert.assertEquals(3, oids.size());
+        Assert.assertEquals("oid1", oids.get("id1"));
+        Assert.assertEquals("oid2", oids.get("id2"));
+        Assert.assertEquals("oid3", oids.get("id3"));
+        // Held by two objects
+        Assert.assertNull(oids.get("shared"));
+        Assert.assertNull(oids.get("missing"));
+
+        // Resolved identifiers come from the cache
+        Assert.assertEquals("oid2", resolver.resolve("id2"));
+        Assert.assertEquals(3, resolver.getQueryCount());
+        Assert.assertEquals(1, resolver.getCacheHitCount());
+        Assert.assertEquals("oid1", resolver.resolve("alias1"));
+        Assert.assertEquals(4, resolver.getQueryCount());
+
+        // Unresolvable identifiers are remembered too
+        Assert.assertNull(resolver.resolve("missing"));
+        Assert.assertNull(resolver.resolve("shared"));
+        Assert.assertEquals(4, resolver.getQueryCount());
+        Assert.assertEquals(2, resolver.getUnresolvedCacheSize());
+    }
+
+    @Test
+    public void mixedBatchTest() throws Exception {
+        MemoryIndexer indexer = new MemoryIndexer(true);
+        indexer.add("oid1", "id1");
+        indexer.add("oid2", "id2");
+        IdentifierResolver resolver = createResolver(indexer,
+                "\"batchSize\":10");
+
+        // Unknown identifiers cost nothing beyond the batch query
+        Map<String, String> oids = resolver.resolveAll(Arrays.asList("u1",
+                "id1", "u2", "u3", "id2", "u4"));
+        Assert.assertEquals(2, oids.size());
+        Assert.assertEquals(1, resolver.getQueryCount());
+
+        // Nor are they queried again by the next message
+        oids = resolver.resolveAll(Arrays.asList("u1", "id1", "u2", "u3",
+                "id2", "u4"));
+        Assert.assertEquals(2, oids.size());
+        Assert.assertEquals(1, resolver.getQueryCount());
+
+        // Until they are given to an object
+        indexer.add("oid3", "u1");
+        resolver.invalidate("u1");
+        Assert.assertEquals("oid3", resolver.resolve("u1"));
+        Assert.assertEquals(2, resolver.getQueryCount());
+    }
+
+    @Test
+    public void pageLimitTest() throws Exception {
+        MemoryIndexer indexer = new MemoryIndexer(true);
+        for (int i = 0; i < 1000; i++) {
+            indexer.add("common" + i, "common");
+        }
+        indexer.add("oid1", "id1");
+        indexer.add("oid2", "id2");
+        IdentifierResolver resolver = createResolver(indexer,
+                "\"batchSize\":3,\"maxPages\":2");
+
+        // The shared identifier is dropped and the rest asked again
+        Map<String, String> oids = resolver.resolveAll(Arrays.asList(
+                "common", "id1", "id2"));
+        Assert.assertEquals(2, oids.size());
+        Assert.assertEquals("oid1", oids.get("id1"));
+        Assert.assertEquals(2, resolver.getQueryCount());
+        Assert.assertEquals("known_ids:(\"id1\" OR \"id2\")", indexer
+                .getSearches().get(1).getQuery());
+    }
+
+    @Test
+    public void truncationTest() throws Exception {
+        MemoryIndexer indexer = new MemoryIndexer(true);
+        // A widely shared identifier fills the first page of the batch
+        for (int i = 0; i < 5; i++) {
+            indexer.add("common" + i, "common");
+        }
+        indexer.add("oid1", "id1");
+        IdentifierResolver resolver = createResolver(indexer);
+
+        Map<String, String> oids = resolver.resolveAll(Arrays.asList(
+                "common", "id1"));
+        Assert.assertEquals("oid1", oids.get("id1"));
+        Assert.assertNull(oids.get("common"));
+        // The first page shows the shared identifier is ambiguous, the rest
+        // of the batch is asked again without it rather than paged through
+        Assert.assertEquals(2, resolver.getQueryCount());
+        Assert.assertEquals("known_ids:(\"id1\")",
+                indexer.getSearches().get(1).getQuery());
+    }
+
+    @Test
+    public void unstoredIdentifiersTest() throws Exception {
+        MemoryIndexer indexer = new MemoryIndexer(false);
+        indexer.add("oid1", "id1");
+        indexer.add("oid2", "id2");
+        indexer.add("oid3", "shared");
+        indexer.add("oid4", "shared");
+        IdentifierResolver resolver = createResolver(indexer);
+
+        // Hits cannot be matched back, so each is looked up on its own.
+        // Only the first batch tries a batch query.
+        Map<String, String> oids = resolver.resolveAll(Arrays.asList("id1",
+                "id2", "shared", "missing"));
+        Assert.assertEquals(2, oids.size());
+        Assert.assertEquals("oid1", oids.get("id1"));
+        Assert.assertEquals("oid2", oids.get("id2"));
+        Assert.assertEquals(5, resolver.getQueryCount());
+    }
+}
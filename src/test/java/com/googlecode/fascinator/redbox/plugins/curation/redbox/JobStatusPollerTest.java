@@ -0,0 +1,209 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationHttpTransport;
+import com.googlecode.fascinator.redbox.plugins.curation.external.dao.model.CurationJob;
+import com.googlecode.fascinator.redbox.plugins.curation.external.processor.JobStatusPoller;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the job status poller against a stub curation manager.
+ */
+public class JobStatusPollerTest {
+    private HttpServer server;
+    private AtomicInteger requests = new AtomicInteger();
+    private CurationHttpTransport transport;
+    private JobStatusPoller poller;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/job/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                String jobId = path.substring(path.lastIndexOf('/') + 1);
+                if ("broken".equals(jobId)) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                String status = "done".equals(jobId) ? "COMPLETED" : "INPROGRESS";
+                byte[] body = ("{\"jobId\":\"" + jobId + "\",\"jobStatus\":\""
+                        + status + "\"}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort();
+        transport = new CurationHttpTransport(4, 4, 5000, 5000, true);
+        poller = new JobStatusPoller(transport, url, 4, 100, 60000, 600000);
+    }
+
+    @After
+    public void tearDown() {
+        poller.shutdown();
+        transport.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void pollTest() throws Exception {
+        List<CurationJob> jobs = new ArrayList<CurationJob>();
+        jobs.add(job(1, "running"));
+        jobs.add(job(2, "broken"));
+        jobs.add(job(3, "done"));
+        poller.reconcile(jobs);
+        Assert.assertEquals(3, poller.getTrackedJobCount());
+
+        // A failed request must not stop the other jobs being read
+        Map<CurationJob, JsonSimple> statuses = poller.poll();
+        Assert.assertEquals(3, requests.get());
+        Assert.assertEquals(2, statuses.size());
+        Assert.assertEquals(3, transport.getStatistics()
+                .get("curation-manager/job-status").getCount());
+        Assert.assertEquals(1, transport.getStatistics()
+                .get("curation-manager/job-status").getFailures());
+        Assert.assertEquals("INPROGRESS",
+                statuses.get(jobs.get(0)).getString(null, "jobStatus"));
+        Assert.assertEquals("COMPLETED",
+                statuses.get(jobs.get(2)).getString(null, "jobStatus"));
+
+        // Every job waits for its next slot, completed ones included, until
+        // the caller is finished with them
+        Assert.assertEquals(3, poller.getTrackedJobCount());
+        Assert.assertTrue(poller.poll().isEmpty());
+        Assert.assertEquals(3, requests.get());
+        poller.untrack("done");
+        Assert.assertEquals(2, poller.getTrackedJobCount());
+
+        // Jobs read again keep their schedule but take the fresh instance,
+        // jobs no longer in progress in the database are dropped
+        CurationJob fresh = job(1, "running");
+        poller.reconcile(Arrays.asList(fresh, job(4, "new")));
+        Assert.assertEquals(2, poller.getTrackedJobCount());
+        statuses = poller.poll();
+        Assert.assertEquals(4, requests.get());
+        Assert.assertEquals(1, statuses.size());
+        Assert.assertEquals("new", statuses.keySet().iterator().next()
+                .getCurationJobId());
+    }
+
+    @Test
+    public void reconcileTest() throws Exception {
+        final AtomicLong clock = new AtomicLong(1000000);
+        JobStatusPoller timedPoller = createPoller(clock, 100, 100, 100);
+        try {
+            timedPoller.reconcile(Arrays.asList(job(1, "running")));
+            timedPoller.poll();
+
+            // The status response is reported against the latest instance
+            CurationJob fresh = job(1, "running");
+            timedPoller.reconcile(Arrays.asList(fresh));
+            clock.addAndGet(100);
+            Assert.assertSame(fresh, timedPoller.poll().keySet().iterator()
+                    .next());
+
+            // Finished elsewhere, so no longer polled
+            timedPoller.reconcile(new ArrayList<CurationJob>());
+            Assert.assertEquals(0, timedPoller.getTrackedJobCount());
+            clock.addAndGet(100);
+            Assert.assertTrue(timedPoller.poll().isEmpty());
+        } finally {
+            timedPoller.shutdown();
+        }
+    }
+
+    @Test
+    public void backOffTest() throws Exception {
+        final AtomicLong clock = new AtomicLong(1000000);
+        JobStatusPoller timedPoller = createPoller(clock, 100, 100, 400);
+        try {
+            List<CurationJob> jobs = new ArrayList<CurationJob>();
+            jobs.add(job(1, "running"));
+            timedPoller.reconcile(jobs);
+
+            // Each unfinished poll doubles the delay, up to the maximum
+            long[] delays = { 100, 200, 400, 400 };
+            for (long delay : delays) {
+                int before = requests.get();
+                Assert.assertEquals(1, timedPoller.poll().size());
+                Assert.assertEquals(before + 1, requests.get());
+                clock.addAndGet(delay - 1);
+                Assert.assertTrue(timedPoller.poll().isEmpty());
+                Assert.assertEquals(before + 1, requests.get());
+                clock.incrementAndGet();
+            }
+        } finally {
+            timedPoller.shutdown();
+        }
+    }
+
+    @Test
+    public void jobsPerPassTest() throws Exception {
+        final AtomicLong clock = new AtomicLong(1000000);
+        JobStatusPoller timedPoller = createPoller(clock, 2, 60000, 600000);
+        try {
+            List<CurationJob> jobs = new ArrayList<CurationJob>();
+            for (int i = 1; i <= 5; i++) {
+                jobs.add(job(i, "running" + i));
+            }
+            timedPoller.reconcile(jobs);
+
+            // Each pass queries at most two jobs, the others wait their turn
+            Map<CurationJob, JsonSimple> statuses = timedPoller.poll();
+            Assert.assertEquals(2, statuses.size());
+            Assert.assertTrue(statuses.containsKey(jobs.get(0)));
+            statuses = timedPoller.poll();
+            Assert.assertEquals(2, statuses.size());
+            Assert.assertTrue(statuses.containsKey(jobs.get(2)));
+            statuses = timedPoller.poll();
+            Assert.assertEquals(1, statuses.size());
+            Assert.assertTrue(statuses.containsKey(jobs.get(4)));
+            Assert.assertTrue(timedPoller.poll().isEmpty());
+            Assert.assertEquals(5, requests.get());
+        } finally {
+            timedPoller.shutdown();
+        }
+    }
+
+    private JobStatusPoller createPoller(final AtomicLong clock,
+            int jobsPerPass, long initialDelay, long maxDelay) {
+        String url = "http://localhost:" + server.getAddress().getPort();
+        return new JobStatusPoller(transport, url, 4, jobsPerPass,
+                initialDelay, maxDelay) {
+            @Override
+            protected long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+    }
+
+    private CurationJob job(int id, String jobId) {
+        CurationJob job = new CurationJob();
+        job.setId(id);
+        job.setCurationJobId(jobId);
+        return job;
+    }
+}
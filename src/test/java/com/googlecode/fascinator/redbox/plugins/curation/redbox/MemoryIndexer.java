@@ -0,0 +1,191 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.api.PluginDescription;
+import com.googlecode.fascinator.api.indexer.Indexer;
+import com.googlecode.fascinator.api.indexer.IndexerException;
+import com.googlecode.fascinator.api.indexer.SearchRequest;
+import com.googlecode.fascinator.common.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONArray;
+
+/**
+ * An index held in memory answering 'known_ids' queries, recording what is
+ * searched and indexed.
+ */
+public class MemoryIndexer implements Indexer {
+    private static final Pattern PHRASE = Pattern
+            .compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+    private final Map<String, List<String>> documents = new LinkedHashMap<String, List<String>>();
+    private final boolean storedIds;
+    private final List<SearchRequest> searches = Collections
+            .synchronizedList(new ArrayList<SearchRequest>());
+    private final List<String> indexed = Collections
+            .synchronizedList(new ArrayList<String>());
+    private int commitCount = 0;
+
+    /**
+     * @param storedIds
+     *            False to leave 'known_ids' out of results, as if the field
+     *            was not stored
+     */
+    public MemoryIndexer(boolean storedIds) {
+        this.storedIds = storedIds;
+    }
+
+    public void add(String oid, String... knownIds) {
+        documents.put(oid, Arrays.asList(knownIds));
+    }
+
+    public List<SearchRequest> getSearches() {
+        return searches;
+    }
+
+    public List<String> getIndexed() {
+        return indexed;
+    }
+
+    public synchronized int getCommitCount() {
+        return commitCount;
+    }
+
+    @Override
+    public void search(SearchRequest request, OutputStream out)
+            throws IndexerException {
+        searches.add(request);
+        List<String> wanted = new ArrayList<String>();
+        Matcher matcher = PHRASE.matcher(request.getQuery());
+        while (matcher.find()) {
+            wanted.add(matcher.group(1).replace("\\\"", "\"")
+                    .replace("\\\\", "\\"));
+        }
+        List<String> matches = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> doc : documents.entrySet()) {
+            if (!Collections.disjoint(doc.getValue(), wanted)) {
+                matches.add(doc.getKey());
+            }
+        }
+        int start = Integer.parseInt(request.getParam("start"));
+        int rows = Integer.parseInt(request.getParam("rows"));
+
+        JSONArray docs = new JSONArray();
+        for (String oid : matches.subList(Math.min(start, matches.size()),
+                Math.min(start + rows, matches.size()))) {
+            JsonObject doc = new JsonObject();
+            doc.put("storage_id", oid);
+            if (storedIds) {
+                JSONArray ids = new JSONArray();
+                ids.addAll(documents.get(oid));
+                doc.put("known_ids", ids);
+            }
+            docs.add(doc);
+        }
+        JsonObject response = new JsonObject();
+        response.put("numFound", matches.size());
+        response.put("start", start);
+        response.put("docs", docs);
+        JsonObject result = new JsonObject();
+        result.put("response", response);
+        try {
+            out.write(result.toJSONString().getBytes("UTF-8"));
+        } catch (IOException ex) {
+            throw new IndexerException(ex);
+        }
+    }
+
+    @Override
+    public void search(SearchRequest request, OutputStream out, String format)
+            throws IndexerException {
+        search(request, out);
+    }
+
+    @Override
+    public void index(String oid) {
+        indexed.add(oid);
+    }
+
+    @Override
+    public void index(String oid, String pid) {
+        indexed.add(oid + "/" + pid);
+    }
+
+    @Override
+    public synchronized void commit() {
+        commitCount++;
+    }
+
+    @Override
+    public void annotate(String oid, String pid) {
+    }
+
+    @Override
+    public void annotateSearch(SearchRequest request, OutputStream out) {
+    }
+
+    @Override
+    public void annotateRemove(String oid) {
+    }
+
+    @Override
+    public void annotateRemove(String oid, String annoId) {
+    }
+
+    @Override
+    public void remove(String oid) {
+    }
+
+    @Override
+    public void remove(String oid, String pid) {
+    }
+
+    @Override
+    public void searchByIndex(SearchRequest request, OutputStream out,
+            String indexName) throws IndexerException {
+        search(request, out);
+    }
+
+    @Override
+    public List<Object> getJsonObjectWithField(String fieldName,
+            String fieldValue) {
+        return new ArrayList<Object>();
+    }
+
+    @Override
+    public String getId() {
+        return "memory";
+    }
+
+    @Override
+    public String getName() {
+        return "Memory Indexer";
+    }
+
+    @Override
+    public PluginDescription getPluginDetails() {
+        return new PluginDescription(this);
+    }
+
+    @Override
+    public void init(File jsonFile) {
+    }
+
+    @Override
+    public void init(String jsonString) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
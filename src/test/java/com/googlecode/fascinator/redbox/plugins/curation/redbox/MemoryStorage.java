@@ -0,0 +1,300 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.api.PluginDescription;
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.PayloadType;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Storage held in memory, counting the reads made against it.
+ */
+public class MemoryStorage implements Storage {
+    private final Map<String, MemoryObject> objects = new ConcurrentHashMap<String, MemoryObject>();
+    private final AtomicInteger getObjectCount = new AtomicInteger();
+    private final AtomicInteger openCount = new AtomicInteger();
+
+    /**
+     * Set a private field of a bean, standing in for Spring's autowiring.
+     */
+    public static void inject(Object bean, String name, Object value)
+            throws Exception {
+        Field field = bean.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(bean, value);
+    }
+
+    public MemoryObject put(String oid, String pid, String content)
+            throws StorageException {
+        MemoryObject object = objects.get(oid);
+        if (object == null) {
+            object = (MemoryObject) createObject(oid);
+        }
+        object.put(pid, content);
+        return object;
+    }
+
+    public int getObjectCount() {
+        return getObjectCount.get();
+    }
+
+    public int getOpenCount() {
+        return openCount.get();
+    }
+
+    public String read(String oid, String pid) throws Exception {
+        return new String(objects.get(oid).payloads.get(pid).content, "UTF-8");
+    }
+
+    @Override
+    public DigitalObject createObject(String oid) throws StorageException {
+        MemoryObject object = new MemoryObject(oid);
+        objects.put(oid, object);
+        return object;
+    }
+
+    @Override
+    public DigitalObject getObject(String oid) throws StorageException {
+        getObjectCount.incrementAndGet();
+        MemoryObject object = objects.get(oid);
+        if (object == null) {
+            throw new StorageException("Object '" + oid + "' not found");
+        }
+        return object;
+    }
+
+    @Override
+    public void removeObject(String oid) throws StorageException {
+        objects.remove(oid);
+    }
+
+    @Override
+    public Set<String> getObjectIdList() {
+        return objects.keySet();
+    }
+
+    @Override
+    public String getId() {
+        return "memory";
+    }
+
+    @Override
+    public String getName() {
+        return "Memory Storage";
+    }
+
+    @Override
+    public PluginDescription getPluginDetails() {
+        return new PluginDescription(this);
+    }
+
+    @Override
+    public void init(File jsonFile) {
+    }
+
+    @Override
+    public void init(String jsonString) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    public class MemoryObject implements DigitalObject {
+        private String id;
+        private String sourceId;
+        private final Properties metadata = new Properties();
+        private final Map<String, MemoryPayload> payloads = new ConcurrentHashMap<String, MemoryPayload>();
+
+        private MemoryObject(String id) {
+            this.id = id;
+        }
+
+        public MemoryPayload put(String pid, String content)
+                throws StorageException {
+            try {
+                return (MemoryPayload) createStoredPayload(pid,
+                        new ByteArrayInputStream(content.getBytes("UTF-8")));
+            } catch (IOException ex) {
+                throw new StorageException(ex);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getSourceId() {
+            return sourceId;
+        }
+
+        @Override
+        public void setSourceId(String sourceId) {
+            this.sourceId = sourceId;
+        }
+
+        @Override
+        public Properties getMetadata() {
+            return metadata;
+        }
+
+        @Override
+        public Set<String> getPayloadIdList() {
+            return new LinkedHashSet<String>(payloads.keySet());
+        }
+
+        @Override
+        public Payload createStoredPayload(String pid, InputStream in)
+                throws StorageException {
+            MemoryPayload payload = new MemoryPayload(pid);
+            payload.write(in);
+            payloads.put(pid, payload);
+            return payload;
+        }
+
+        @Override
+        public Payload createLinkedPayload(String pid, String linkPath)
+                throws StorageException {
+            throw new StorageException("Linked payloads are not supported");
+        }
+
+        @Override
+        public Payload getPayload(String pid) throws StorageException {
+            MemoryPayload payload = payloads.get(pid);
+            if (payload == null) {
+                throw new StorageException("Payload '" + pid + "' not found");
+            }
+            return payload;
+        }
+
+        @Override
+        public void removePayload(String pid) {
+            payloads.remove(pid);
+        }
+
+        @Override
+        public Payload updatePayload(String pid, InputStream in)
+                throws StorageException {
+            MemoryPayload payload = (MemoryPayload) getPayload(pid);
+            payload.write(in);
+            return payload;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public class MemoryPayload implements Payload {
+        private String id;
+        private String label;
+        private String contentType;
+        private PayloadType type = PayloadType.Source;
+        private byte[] content;
+        private Long lastModified;
+
+        private MemoryPayload(String id) {
+            this.id = id;
+        }
+
+        private void write(InputStream in) throws StorageException {
+            try {
+                content = IOUtils.toByteArray(in);
+            } catch (IOException ex) {
+                throw new StorageException(ex);
+            }
+            lastModified = System.nanoTime();
+        }
+
+        public void setLastModified(Long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public PayloadType getType() {
+            return type;
+        }
+
+        @Override
+        public void setType(PayloadType type) {
+            this.type = type;
+        }
+
+        @Override
+        public boolean isLinked() {
+            return false;
+        }
+
+        @Override
+        public String getLabel() {
+            return label;
+        }
+
+        @Override
+        public void setLabel(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+        }
+
+        @Override
+        public InputStream open() {
+            openCount.incrementAndGet();
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public Long size() {
+            return (long) content.length;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.redbox.plugins.curation.external.ObjectSnapshotCache;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks what the snapshot cache reads from storage, within a scope and
+ * across scopes.
+ */
+public class ObjectSnapshotCacheTest {
+    private MemoryStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new MemoryStorage();
+        storage.put("config", "config.json", "{\"curation\":{\"a\":\"1\"}}");
+        for (String oid : new String[] { "r1", "r2" }) {
+            MemoryStorage.MemoryObject object = storage.put(oid, oid
+                    + ".tfpackage", "{\"title\":\"" + oid + "\"}");
+            object.getMetadata().setProperty("jsonConfigOid", "config");
+            object.getMetadata().setProperty("jsonConfigPid", "config.json");
+        }
+    }
+
+    private ObjectSnapshotCache createCache(int revalidateInterval)
+            throws Exception {
+        ObjectSnapshotCache cache = new ObjectSnapshotCache(
+                new JsonSimpleConfig("{\"curation\":{\"snapshot-cache\":"
+                        + "{\"configRevalidateInterval\":"
+                        + revalidateInterval + "}}}"));
+        MemoryStorage.inject(cache, "storage", storage);
+        return cache;
+    }
+
+    @Test
+    public void scopeTest() throws Exception {
+        ObjectSnapshotCache cache = createCache(60000);
+        ObjectSnapshotCache.Scope scope = cache.openScope();
+
+        // Data and form data share one read, later readers see changes
+        JsonSimple data = scope.getData("r1");
+        Assert.assertEquals("r1", scope.getFormData("r1").getString(null,
+                "title"));
+        data.getJsonObject().put("title", "changed");
+        Assert.assertSame(data, scope.getData("r1"));
+        Assert.assertEquals(1, storage.getObjectCount());
+        Assert.assertEquals(1, storage.getOpenCount());
+
+        // Properties are read once as well
+        scope.getMetadata("r1");
+        scope.getMetadata("r1");
+        Assert.assertEquals(2, storage.getObjectCount());
+
+        // A new scope reads storage again
+        Assert.assertEquals("r1", cache.openScope().getData("r1")
+                .getString(null, "title"));
+        Assert.assertEquals(2, storage.getOpenCount());
+    }
+
+    @Test
+    public void configTest() throws Exception {
+        ObjectSnapshotCache cache = createCache(60000);
+        JsonSimple config = cache.openScope().getConfig("r1");
+        Assert.assertEquals("1", config.getString(null, "curation", "a"));
+        int reads = storage.getObjectCount();
+
+        // Another record and scope share the cached config untouched
+        Assert.assertSame(config, cache.openScope().getConfig("r2"));
+        Assert.assertEquals(reads + 1, storage.getObjectCount());
+        Assert.assertEquals(1, storage.getOpenCount());
+
+        // Copies may be changed at the top level without affecting the cache
+        JsonSimple copy = cache.getConfig("r1");
+        copy.getJsonObject().put("curation", "replaced");
+        Assert.assertEquals("1", cache.openScope().getConfig("r1")
+                .getString(null, "curation", "a"));
+    }
+
+    @Test
+    public void staleConfigTest() throws Exception {
+        ObjectSnapshotCache cache = createCache(0);
+        Assert.assertEquals("1", cache.openScope().getConfig("r1")
+                .getString(null, "curation", "a"));
+
+        // Unchanged, the modification time is checked but not reloaded
+        Assert.assertEquals("1", cache.openScope().getConfig("r1")
+                .getString(null, "curation", "a"));
+        Assert.assertEquals(1, storage.getOpenCount());
+
+        // Changed, the new config is read
+        storage.getObject("config").updatePayload("config.json",
+                new ByteArrayInputStream("{\"curation\":{\"a\":\"2\"}}"
+                        .getBytes("UTF-8")));
+        Assert.assertEquals("2", cache.openScope().getConfig("r1")
+                .getString(null, "curation", "a"));
+        Assert.assertEquals(2, storage.getOpenCount());
+
+        // Trusted for the revalidation interval, even once changed
+        cache = createCache(60000);
+        cache.openScope().getConfig("r1");
+        storage.getObject("config").updatePayload("config.json",
+                new ByteArrayInputStream("{\"curation\":{\"a\":\"3\"}}"
+                        .getBytes("UTF-8")));
+        Assert.assertEquals("2", cache.openScope().getConfig("r1")
+                .getString(null, "curation", "a"));
+    }
+}
@@ -0,0 +1,170 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.redbox.plugins.curation.external.CurationHttpTransport;
+import com.googlecode.fascinator.redbox.plugins.curation.external.IdentifierResolver;
+import com.googlecode.fascinator.redbox.plugins.curation.external.PublicationHandler;
+import com.googlecode.fascinator.redbox.plugins.curation.external.PublicationResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Publishes a job's records to this system and to external systems, one of
+ * which fails.
+ */
+public class PublicationHandlerTest {
+    private HttpServer server;
+    private final Map<String, AtomicInteger> posts = new ConcurrentHashMap<String, AtomicInteger>();
+    private volatile boolean minaFailing = true;
+    private CurationHttpTransport transport;
+    private MemoryStorage storage;
+    private MemoryIndexer indexer;
+    private PublicationHandler handler;
+    private IdentifierResolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        posts.put("/mint", new AtomicInteger());
+        posts.put("/mina", new AtomicInteger());
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                IOUtils.toByteArray(exchange.getRequestBody());
+                posts.get(path).incrementAndGet();
+                exchange.sendResponseHeaders("/mina".equals(path)
+                        && minaFailing ? 500 : 204, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort();
+        transport = new CurationHttpTransport(4, 4, 5000, 5000, true);
+
+        storage = new MemoryStorage();
+        storage.put("r1", "r1.tfpackage", "{}");
+        storage.put("r2", "r2.tfpackage", "{}");
+        indexer = new MemoryIndexer(true);
+        handler = new PublicationHandler(new JsonSimpleConfig(
+                "{\"redbox\":{\"system\":\"redbox\"},"
+                        + "\"curation\":{"
+                        + "\"supported-types\":{\"dataset\":\"redbox\","
+                        + "\"party\":\"mint\",\"activity\":\"mina\"},"
+                        + "\"identifier-pids\":{\"handle\":\"handle_pid\"},"
+                        + "\"external-system-urls\":{\"publish\":{"
+                        + "\"mint\":\"" + url + "/mint\","
+                        + "\"mina\":\"" + url + "/mina\"}}}}"));
+        MemoryStorage.inject(handler, "storage", storage);
+        MemoryStorage.inject(handler, "indexer", indexer);
+        MemoryStorage.inject(handler, "httpTransport", transport);
+        resolver = new IdentifierResolver(new JsonSimpleConfig("{}"));
+        MemoryStorage.inject(resolver, "indexer", indexer);
+        MemoryStorage.inject(handler, "identifierResolver", resolver);
+    }
+
+    @After
+    public void tearDown() {
+        handler.destroy();
+        transport.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void partialFailureTest() throws Exception {
+        List<JsonObject> records = new ArrayList<JsonObject>();
+        records.add(record("r1", "dataset"));
+        records.add(record("r2", "dataset"));
+        records.add(record("p1", "party"));
+        records.add(record("a1", "activity"));
+        records.add(record("x1", "unknown"));
+
+        PublicationResult result = handler.publishRecords(records);
+        Assert.assertFalse(result.isSuccessful());
+
+        // Local records are indexed with a single commit for the job
+        Assert.assertEquals(2, result.getResult("redbox").getPublishedCount());
+        Assert.assertEquals(2, indexer.getIndexed().size());
+        Assert.assertEquals(1, indexer.getCommitCount());
+        Assert.assertEquals("urn:r1", storage.getObject("r1").getMetadata()
+                .getProperty("handle_pid"));
+        Assert.assertEquals("true", storage.getObject("r2").getMetadata()
+                .getProperty("published"));
+
+        // One failing system does not hide the others
+        Assert.assertTrue(result.getResult("mint").isSuccessful());
+        Assert.assertFalse(result.getResult("mina").isSuccessful());
+        Assert.assertFalse(result.getResult(PublicationResult.UNSUPPORTED)
+                .isSuccessful());
+        Assert.assertEquals(Collections.singleton("mina"),
+                result.getFailedSystems());
+
+        // Retrying publishes to the failed system only
+        minaFailing = false;
+        result = handler.publishRecords(records, result.getFailedSystems());
+        Assert.assertTrue(result.isSuccessful());
+        Assert.assertEquals(1, result.getResults().size());
+        Assert.assertEquals(1, posts.get("/mint").get());
+        Assert.assertEquals(2, posts.get("/mina").get());
+        Assert.assertEquals(2, indexer.getIndexed().size());
+    }
+
+    @Test
+    public void identifierInvalidationTest() throws Exception {
+        // Unknown before the record is published
+        Assert.assertNull(resolver.resolve("urn:r1"));
+        indexer.add("r1", "urn:r1");
+        Assert.assertNull(resolver.resolve("urn:r1"));
+
+        List<JsonObject> records = new ArrayList<JsonObject>();
+        records.add(record("r1", "dataset"));
+        handler.publishRecords(records);
+        Assert.assertEquals("r1", resolver.resolve("urn:r1"));
+    }
+
+    @Test
+    public void localFailureTest() throws Exception {
+        List<JsonObject> records = new ArrayList<JsonObject>();
+        records.add(record("r1", "dataset"));
+        records.add(record("missing", "dataset"));
+
+        // A record that cannot be published still commits the others
+        PublicationResult result = handler.publishRecords(records);
+        Assert.assertEquals(1, result.getResult("redbox").getPublishedCount());
+        Assert.assertEquals(2, result.getResult("redbox").getRecordCount());
+        Assert.assertEquals(1, indexer.getCommitCount());
+        Assert.assertEquals(Collections.singleton("redbox"),
+                result.getFailedSystems());
+    }
+
+    private JsonObject record(String oid, String type) {
+        JsonObject identifier = new JsonObject();
+        identifier.put("identifier_type", "handle");
+        identifier.put("identifier", "urn:" + oid);
+        JSONArray identifiers = new JSONArray();
+        identifiers.add(identifier);
+        JsonObject record = new JsonObject();
+        record.put("oid", oid);
+        record.put("type", type);
+        record.put("required_identifiers", identifiers);
+        return record;
+    }
+}
@@ -0,0 +1,129 @@
+package com.googlecode.fascinator.redbox.plugins.curation.redbox;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.redbox.plugins.curation.external.ObjectSnapshotCache;
+import com.googlecode.fascinator.redbox.plugins.curation.external.RelationshipMapper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks relationship graphs are walked once per node and abandoned walks
+ * stop.
+ */
+public class RelationshipMapperTest {
+    private RelationshipMapper mapper;
+
+    @After
+    public void tearDown() {
+        if (mapper != null) {
+            mapper.destroy();
+        }
+    }
+
+    private RelationshipMapper createMapper(MemoryStorage storage, int timeout)
+            throws Exception {
+        JsonSimpleConfig config = new JsonSimpleConfig("{\"redbox\":"
+                + "{\"system\":\"redbox\"},\"curation\":{\"relations\":{},"
+                + "\"relationship-traversal\":{\"threads\":4,\"timeout\":"
+                + timeout + "}}}");
+        ObjectSnapshotCache cache = new ObjectSnapshotCache(config);
+        MemoryStorage.inject(cache, "storage", storage);
+        RelationshipMapper relationshipMapper = new RelationshipMapper(config);
+        MemoryStorage.inject(relationshipMapper, "storage", storage);
+        MemoryStorage.inject(relationshipMapper, "objectSnapshotCache", cache);
+        return relationshipMapper;
+    }
+
+    private static void link(MemoryStorage storage, String oid,
+            String... related) throws Exception {
+        StringBuilder data = new StringBuilder("{\"relationships\":[");
+        for (int i = 0; i < related.length; i++) {
+            data.append(i == 0 ? "" : ",").append("{\"oid\":\"")
+                    .append(related[i]).append("\"}");
+        }
+        storage.put(oid, oid + ".tfpackage", data.append("]}").toString());
+    }
+
+    @Test
+    public void cyclicGraphTest() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        // a -> b -> c -> a, with a shortcut a -> c and a self link on b
+        link(storage, "a", "b", "c");
+        link(storage, "b", "b", "c");
+        link(storage, "c", "a");
+        link(storage, "d", "a");
+        mapper = createMapper(storage, 10000);
+
+        Map<String, JsonObject> map = mapper.getRelationshipMap("a");
+        Assert.assertEquals(3, map.size());
+        Assert.assertTrue(map.keySet().containsAll(
+                Arrays.asList("a", "b", "c")));
+        // Every node was read from storage exactly once
+        Assert.assertEquals(3, storage.getObjectCount());
+
+        // The same mapper walks the graph again from another node
+        map = mapper.getRelationshipMap("d");
+        Assert.assertEquals(4, map.size());
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        MemoryStorage storage = new MemoryStorage() {
+            @Override
+            public DigitalObject getObject(String oid) throws StorageException {
+                if ("slow".equals(oid)) {
+                    try {
+                        Thread.sleep(30000);
+                    } catch (InterruptedException ex) {
+                        interrupted.countDown();
+                        throw new StorageException(ex);
+                    }
+                }
+                return super.getObject(oid);
+            }
+        };
+        link(storage, "a", "slow");
+        link(storage, "slow", "b");
+        link(storage, "b");
+        mapper = createMapper(storage, 200);
+        // Workers are released once each expansion has finished
+        final Semaphore finished = new Semaphore(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable ex) {
+                finished.release();
+            }
+        };
+        mapper.destroy();
+        MemoryStorage.inject(mapper, "traversalExecutor", executor);
+
+        try {
+            mapper.getRelationshipMap("a");
+            Assert.fail("Traversal should have timed out");
+        } catch (IOException ex) {
+            // expected
+        }
+        // The abandoned expansion is interrupted rather than left running
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        // Both expansions have finished without queuing another
+        Assert.assertTrue(finished.tryAcquire(2, 5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, executor.getTaskCount());
+        Assert.assertEquals(1, storage.getObjectCount());
+    }
+}